@@ -5,12 +5,14 @@ import javax.swing.*;
 import javax.swing.table.AbstractTableModel;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
 public class ItemsPanel extends JScrollPane {
 
     private JTable table;
     private ArrayList<DownloadItem> itemsList = new ArrayList<>();
+    private HashMap<Integer, Integer> rows = new HashMap<>();  // item id -> index in itemsList
 
     public ItemsPanel(DownloadManager downloadManager) {
         setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
@@ -105,6 +107,7 @@ public class ItemsPanel extends JScrollPane {
         new ButtonColumn(table, (event) -> {
             int row = Integer.parseInt(event.getActionCommand());
             DownloadItem item = itemsList.remove(row);
+            updateRows();
             downloadManager.remove(item.getId());
         }, 6);
         table.getColumnModel().getColumn(0).setPreferredWidth(50);
@@ -120,16 +123,68 @@ public class ItemsPanel extends JScrollPane {
     }
 
     public void add(DownloadItem item) {
+        if (append(item)) {
+            int row = itemsList.size() - 1;
+            ((AbstractTableModel) table.getModel()).fireTableRowsInserted(row, row);
+            table.setRowHeight(row, MainWindow.LINE_HEIGHT);
+        }
+    }
+
+    private boolean append(DownloadItem item) {
+        if (rows.containsKey(item.getId())) {
+            return false;
+        }
+        rows.put(item.getId(), itemsList.size());
         itemsList.add(item);
+        return true;
     }
 
-    public void update(DownloadItem[] items) {
-        itemsList.clear();
-        itemsList.addAll(Arrays.asList(items));
-        ((AbstractTableModel) table.getModel()).fireTableDataChanged();
+    /**
+     * Applies changed items, only changed rows are updated if there are no added or removed items
+     */
+    public void update(DownloadChanges changes) {
+        AbstractTableModel model = (AbstractTableModel) table.getModel();
+        boolean structureChanged = changes.isFull() || changes.getRemoved().length != 0;
+        if (changes.isFull()) {
+            itemsList.clear();
+            rows.clear();
+        } else if (changes.getRemoved().length != 0) {
+            HashSet<Integer> removed = new HashSet<>();
+            for (int id : changes.getRemoved()) {
+                removed.add(id);
+            }
+            itemsList.removeIf(item -> removed.contains(item.getId()));
+            updateRows();
+        }
+
+        ArrayList<Integer> updatedRows = new ArrayList<>();
+        for (DownloadItem item : changes.getItems()) {
+            Integer row = rows.get(item.getId());
+            if (row != null) {
+                itemsList.set(row, item);
+                updatedRows.add(row);
+            } else {
+                append(item);
+                structureChanged = true;
+            }
+        }
+
+        if (structureChanged) {
+            model.fireTableDataChanged();
+            for (int i = 0; i < table.getRowCount(); i++) {
+                table.setRowHeight(i, MainWindow.LINE_HEIGHT);
+            }
+        } else {
+            for (int row : updatedRows) {
+                model.fireTableRowsUpdated(row, row);
+            }
+        }
+    }
 
-        for (int i = 0; i < table.getRowCount(); i++) {
-            table.setRowHeight(i, MainWindow.LINE_HEIGHT);
+    private void updateRows() {
+        rows.clear();
+        for (int i = 0; i < itemsList.size(); i++) {
+            rows.put(itemsList.get(i).getId(), i);
         }
     }
 
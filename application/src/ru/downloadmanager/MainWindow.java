@@ -26,6 +26,7 @@ public class MainWindow {
     }
 
     private DownloadManager manager;
+    private long version = 0;  // version of items shown in itemsPanel
 
     private JFrame frame;
     private JTextField urlField;
@@ -53,6 +54,14 @@ public class MainWindow {
         manager = new DownloadManager(defaultThreadsCount, downloadDir);
         manager.setUserAgent(userAgent);
         manager.setRedirectionLimit(redirectionLimit);
+        String journalFile = ApplicationConfig.get("journalFile");
+        if (journalFile != null && !journalFile.isEmpty()) {
+            try {
+                manager.openJournal(new File(journalFile));
+            } catch (IOException e) {
+                throw new RuntimeException("Can't read journal: " + journalFile, e);
+            }
+        }
 
         //    create main window
         frame = new JFrame();
@@ -216,19 +225,13 @@ public class MainWindow {
     }
 
     private void updateStatus() {
-        DownloadState state = manager.getState();
+        DownloadSummary summary = manager.getSummary();
 
-        boolean hasUncompleted = false;
-        for (DownloadItem item : state.getItems()) {
-            if (item.isActive() || item.isStopped()) {
-                hasUncompleted = true;
-                break;
-            }
-        }
+        boolean hasUncompleted = summary.getActiveCount() + summary.getCount(DownloadItemState.STOPPED) > 0;
 
-        long received = state.getReceived();
-        long total = state.getTotal();
-        if (state.getItems().length == 0) {
+        long received = summary.getReceived();
+        long total = summary.getTotal();
+        if (summary.getItemsCount() == 0) {
             totalProgress.setValue(0);
             totalProgress.setString("no files");
         } else if (!hasUncompleted) {
@@ -242,6 +245,8 @@ public class MainWindow {
             totalProgress.setString(String.format("%d/%d b (%d%%)", received, total, Math.round(received * 100f / total)));
         }
 
-        itemsPanel.update(state.getItems());
+        DownloadChanges changes = manager.getChangesSince(version);
+        version = changes.getVersion();
+        itemsPanel.update(changes);
     }
 }
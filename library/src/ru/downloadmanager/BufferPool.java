@@ -0,0 +1,157 @@
+package ru.downloadmanager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Pool of direct buffers whose total memory is limited by the budget.
+ * Buffer capacities are powers of two from MIN_SIZE, released buffers are kept for reuse by their capacity.
+ * If the budget doesn't allow a buffer of requested size, free buffers of other sizes are dropped to get memory,
+ * if it isn't enough, the caller gets a smaller buffer, and it waits if all memory is used by others.
+ * Thread-safe
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 4096;
+
+    private long budget;  //bytes
+    private long allocated = 0;  // capacity of all buffers of the pool, free and used
+    private long inUse = 0;
+    private long freeBytes = 0;
+    private final TreeMap<Integer, ArrayDeque<ByteBuffer>> free = new TreeMap<>();  // by capacity
+
+    //    metrics
+    private long allocations = 0;
+    private long shrinks = 0;  // count of buffers which are smaller than requested
+    private long waits = 0;  // count of requests which waited for memory
+
+    public BufferPool(long budget) {
+        setBudget(budget);
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Changes limit of memory, it must be not less than MIN_SIZE.
+     * Buffers above the new limit are dropped when they are released.
+     */
+    public synchronized void setBudget(long budget) {
+        if (budget < MIN_SIZE) {
+            throw new IllegalArgumentException("Budget is less than minimal buffer size: " + budget);
+        }
+        this.budget = budget;
+        while (allocated > budget && freeBytes > 0) {
+            dropFree();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return memory of all buffers, free and used
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    public synchronized long getInUse() {
+        return inUse;
+    }
+
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    public synchronized long getShrinks() {
+        return shrinks;
+    }
+
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * @return buffer with capacity of the size rounded up to power of two, or smaller if the budget is exhausted.
+     *         It must be returned by 'release'.
+     */
+    public synchronized ByteBuffer acquire(int size) throws InterruptedException {
+        boolean waited = false;
+        while (true) {
+            ByteBuffer buffer = tryAcquire(size);
+            if (buffer != null) {
+                if (waited) {
+                    waits++;
+                }
+                return buffer;
+            }
+            waited = true;
+            wait();
+        }
+    }
+
+    /**
+     * Like 'acquire', but it doesn't wait
+     * @return null if all memory is used by others
+     */
+    public synchronized ByteBuffer tryAcquire(int size) {
+        int capacity = Math.max(MIN_SIZE, Integer.highestOneBit(size - 1) << 1);
+        for (int smaller = capacity; smaller >= MIN_SIZE; smaller >>= 1) {
+            ByteBuffer buffer = take(smaller);
+            if (buffer != null) {
+                if (smaller < capacity) {
+                    shrinks++;
+                }
+                inUse += smaller;
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        inUse -= capacity;
+        if (allocated > budget) {
+            allocated -= capacity;
+        } else {
+            free.computeIfAbsent(capacity, key -> new ArrayDeque<>()).addLast(buffer);
+            freeBytes += capacity;
+        }
+        notifyAll();
+    }
+
+    // free buffer of the capacity or new one if memory allows, null if there is no memory
+    private ByteBuffer take(int capacity) {
+        ArrayDeque<ByteBuffer> buffers = free.get(capacity);
+        if (buffers != null && !buffers.isEmpty()) {
+            freeBytes -= capacity;
+            return buffers.pollLast();
+        }
+        if (allocated - freeBytes + capacity > budget) {
+            return null;
+        }
+        while (allocated + capacity > budget) {
+            dropFree();
+        }
+        allocated += capacity;
+        allocations++;
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    // forget the largest free buffer, its memory is freed by GC
+    private void dropFree() {
+        Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = free.lastEntry();
+        while (entry.getValue().isEmpty()) {
+            free.remove(entry.getKey());
+            entry = free.lastEntry();
+        }
+        entry.getValue().pollLast();
+        allocated -= entry.getKey();
+        freeBytes -= entry.getKey();
+    }
+}
@@ -0,0 +1,100 @@
+package ru.downloadmanager;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+
+/**
+ * Expected digest of file content, like new Checksum("SHA-256", "9f86d081...").
+ * Text form is "algorithm:hex".
+ */
+public class Checksum {
+
+    private final String algorithm;  // name of MessageDigest algorithm
+    private final byte[] value;
+
+    /**
+     * @throws IllegalArgumentException if the algorithm isn't supported or the value isn't hexadecimal
+     */
+    public Checksum(String algorithm, String hex) {
+        this.algorithm = algorithm;
+        value = parseHex(hex);
+        createDigest();
+    }
+
+    public static Checksum parse(String text) {
+        int i = text.lastIndexOf(':');
+        if (i == -1) {
+            throw new IllegalArgumentException("No algorithm in checksum: " + text);
+        }
+        return new Checksum(text.substring(0, i), text.substring(i + 1));
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public byte[] getValue() {
+        return value.clone();
+    }
+
+    public String getHex() {
+        return toHex(value);
+    }
+
+    MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+        }
+    }
+
+    boolean matches(byte[] digest) {
+        return MessageDigest.isEqual(value, digest);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Checksum)) {
+            return false;
+        }
+        Checksum other = (Checksum) o;
+        return algorithm.equalsIgnoreCase(other.algorithm) && Arrays.equals(value, other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + getHex();
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length of hexadecimal checksum: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1) {
+                throw new IllegalArgumentException("Checksum isn't hexadecimal: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,341 @@
+package ru.downloadmanager;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Keep-alive connections grouped by host.
+ * Released connections stay idle until they are reused for the same host, evicted by idle timeout
+ * or by the limit of idle connections per host. Requests check only idle connections of their host,
+ * the rest are checked by periodic sweep while the pool has idle connections. TLS sessions are cached by the pool SSL context,
+ * so new connections to the same host make abbreviated handshake.
+ * Thread-safe
+ */
+public class ConnectionPool {
+
+    private static final long SWEEP_PERIOD = 1000;  //ms
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "connection-pool-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private int maxIdlePerHost = 8;
+    private long idleTimeout = 30000;  //ms
+
+    private final Map<String, ArrayDeque<Connection>> idle = new HashMap<>();
+    private ScheduledFuture<?> sweep;  // it's scheduled while there are idle connections
+    private SSLSocketFactory sslSocketFactory;
+    private SSLContext sslContext;
+    private int tlsSessionCacheSize = 1000;
+    private int tlsSessionTimeout = 3600;  //seconds
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ConnectionPool() {
+
+    }
+
+    public ConnectionPool(int maxIdlePerHost, long idleTimeout) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public synchronized int getMaxIdlePerHost() {
+        return maxIdlePerHost;
+    }
+
+    public void setMaxIdlePerHost(int maxIdlePerHost) {
+        synchronized (this) {
+            this.maxIdlePerHost = maxIdlePerHost;
+        }
+        evictIdle();
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Time in milliseconds after which idle connection is closed.
+     * It should be less than server keep-alive timeout, otherwise reused connections can be already closed by server.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        synchronized (this) {
+            this.idleTimeout = idleTimeout;
+        }
+        evictIdle();
+    }
+
+    public synchronized int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    public synchronized void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+        if (sslContext != null) {
+            sslContext.getClientSessionContext().setSessionCacheSize(tlsSessionCacheSize);
+        }
+    }
+
+    public synchronized int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    /**
+     * Lifetime of cached TLS session in seconds
+     */
+    public synchronized void setTlsSessionTimeout(int tlsSessionTimeout) {
+        this.tlsSessionTimeout = tlsSessionTimeout;
+        if (sslContext != null) {
+            sslContext.getClientSessionContext().setSessionTimeout(tlsSessionTimeout);
+        }
+    }
+
+    /**
+     * Count of requests which got idle connection
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Count of requests which opened new connection
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Count of idle connections closed by timeout or limit
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (ArrayDeque<Connection> connections : idle.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns idle connection to the host or opens new one, TLS handshake of new connection waits without timeout
+     */
+    public Connection acquire(String scheme, String host, int port, int connectTimeout) throws IOException {
+        return acquire(scheme, host, port, connectTimeout, 0);
+    }
+
+    /**
+     * Returns idle connection to the host or opens new one
+     * @param readTimeout ms of waiting for the peer during TLS handshake, zero is infinite
+     */
+    public Connection acquire(String scheme, String host, int port, int connectTimeout, int readTimeout) throws IOException {
+        String key = scheme + "://" + host + ":" + port;
+        List<Connection> evicted = new ArrayList<>();
+        Connection connection = null;
+        synchronized (this) {
+            ArrayDeque<Connection> connections = idle.get(key);
+            if (connections != null) {
+                expire(connections, evicted);
+                connection = connections.pollLast();  // the most recently used is the most likely alive
+                if (connections.isEmpty()) {
+                    idle.remove(key);
+                }
+            }
+        }
+        close(evicted);
+        if (connection != null) {
+            hits.incrementAndGet();
+            return connection;
+        }
+        misses.incrementAndGet();
+        return new Connection(key, connect(scheme, host, port, connectTimeout, readTimeout));
+    }
+
+    /**
+     * Makes connection idle, it must have no unread response
+     */
+    public void release(Connection connection) {
+        List<Connection> evicted = new ArrayList<>();
+        synchronized (this) {
+            ArrayDeque<Connection> connections = idle.computeIfAbsent(connection.key, key -> new ArrayDeque<>());
+            expire(connections, evicted);
+            if (connections.size() < maxIdlePerHost) {
+                connection.reused = true;
+                connection.lastUsed = System.currentTimeMillis();
+                connections.addLast(connection);
+                if (sweep == null) {
+                    sweep = sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+                }
+            } else {
+                evicted.add(connection);
+                if (connections.isEmpty()) {
+                    idle.remove(connection.key);
+                }
+            }
+        }
+        close(evicted);
+    }
+
+    /**
+     * Closes connections which are idle longer than timeout or exceed the limit
+     */
+    public void evictIdle() {
+        List<Connection> evicted = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<ArrayDeque<Connection>> i = idle.values().iterator(); i.hasNext(); ) {
+                ArrayDeque<Connection> connections = i.next();
+                expire(connections, evicted);
+                if (connections.isEmpty()) {
+                    i.remove();
+                }
+            }
+        }
+        close(evicted);
+    }
+
+    // periodic eviction, it's stopped when the pool has no idle connections
+    private void sweep() {
+        evictIdle();
+        synchronized (this) {
+            if (idle.isEmpty() && sweep != null) {
+                sweep.cancel(false);
+                sweep = null;
+            }
+        }
+    }
+
+    // moves connections of the host which are idle longer than timeout or exceed the limit, it's called under the pool lock
+    private void expire(ArrayDeque<Connection> connections, List<Connection> evicted) {
+        long expired = System.currentTimeMillis() - idleTimeout;
+        while (!connections.isEmpty() && (connections.size() > maxIdlePerHost || connections.peekFirst().lastUsed < expired)) {
+            evicted.add(connections.pollFirst());
+        }
+    }
+
+    private void close(List<Connection> evicted) {
+        evictions.addAndGet(evicted.size());
+        for (Connection connection : evicted) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes all idle connections
+     */
+    public void close() {
+        List<Connection> connections = new ArrayList<>();
+        synchronized (this) {
+            for (ArrayDeque<Connection> hostConnections : idle.values()) {
+                connections.addAll(hostConnections);
+            }
+            idle.clear();
+            if (sweep != null) {
+                sweep.cancel(false);
+                sweep = null;
+            }
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private Socket connect(String scheme, String host, int port, int connectTimeout, int readTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            //    stalled peer doesn't block the handshake forever
+            socket.setSoTimeout(readTimeout);
+            if (!scheme.equals("https")) {
+                return socket;
+            }
+            SSLSocket sslSocket = (SSLSocket) getSSLSocketFactory().createSocket(socket, host, port, true);
+            SSLParameters parameters = sslSocket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            sslSocket.setSSLParameters(parameters);
+            sslSocket.startHandshake();
+            return sslSocket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private synchronized SSLSocketFactory getSSLSocketFactory() throws IOException {
+        if (sslSocketFactory == null) {
+            try {
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Can't initialize TLS", e);
+            }
+            sslContext.getClientSessionContext().setSessionCacheSize(tlsSessionCacheSize);
+            sslContext.getClientSessionContext().setSessionTimeout(tlsSessionTimeout);
+            sslSocketFactory = sslContext.getSocketFactory();
+        }
+        return sslSocketFactory;
+    }
+
+
+    public static class Connection {
+        private final String key;
+        private final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        private volatile long lastUsed;
+        private volatile boolean reused = false;
+
+        Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        Socket getSocket() {
+            return socket;
+        }
+
+        /**
+         * @return true if the connection was taken from idle connections
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //    nothing to do with already broken connection
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package ru.downloadmanager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Local cache of downloaded files which is shared by services and managers, it's consulted before network requests.
+ * Content is stored once by its SHA-256 in the directory, and normalized URLs refer to it with validators of the response.
+ * Size of the content is limited, the least recently used files are evicted. Index is kept in memory
+ * and written to the directory by 'save', content which isn't in the index is deleted when the cache is opened.
+ * Thread-safe
+ */
+public class DownloadCache {
+
+    private static final String INDEX = "index";
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final long maxSize;  //bytes
+    private final Map<String, Entry> entries = new HashMap<>();  // by normalized URL
+    private final LinkedHashMap<String, Long> contents = new LinkedHashMap<>(16, 0.75f, true);  // sizes by hash in LRU order
+    private long size = 0;
+    private volatile boolean hardLinks = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Opens the cache in the directory, index of the previous run is read if it was saved
+     */
+    public DownloadCache(File dir, long maxSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create cache directory: " + dir);
+        }
+        File index = new File(dir, INDEX);
+        if (index.exists()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    String[] fields = line.split("\t", -1);
+                    try {
+                        String hash = fields[1];
+                        File content = new File(dir, hash);
+                        if (!content.isFile()) {
+                            continue;
+                        }
+                        if (!contents.containsKey(hash)) {
+                            contents.put(hash, content.length());
+                            size += content.length();
+                        }
+                        entries.put(decode(fields[0]), new Entry(hash, content.length(),
+                                fields[2].isEmpty() ? null : decode(fields[2]), fields[3].isEmpty() ? null : decode(fields[3])));
+                    } catch (RuntimeException e) {
+                        //    broken line
+                    }
+                }
+            }
+        }
+        //    content of unsaved entries and unfinished copies
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(INDEX) && !contents.containsKey(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+        evict();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return total size of cached content
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntriesCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public boolean isHardLinks() {
+        return hardLinks;
+    }
+
+    /**
+     * Whether target files are filled by hard links to cached content instead of copies, it falls back to copy
+     * if the file system doesn't support links. Linked files share content with the cache, so they must not be modified
+     * in place, the service replaces such file by its own copy before the next download into it.
+     */
+    public void setHardLinks(boolean hardLinks) {
+        this.hardLinks = hardLinks;
+    }
+
+    /**
+     * @return validators of the cached version of the URL or null
+     */
+    public synchronized Entry get(String url) {
+        return entries.get(normalize(url));
+    }
+
+    /**
+     * Fills the file by cached content of the URL, the hit makes the content recently used
+     * @return entry of the content or null if the URL isn't cached
+     */
+    public Entry fill(String url, File file) throws IOException {
+        return fill(url, file, 0);
+    }
+
+    /**
+     * Fills the rest of the file from the position like 'fill(url, file)', the part before it is kept
+     * @return entry of the content or null if the URL isn't cached or its content is shorter than the position
+     */
+    public Entry fill(String url, File file, long from) throws IOException {
+        String key = normalize(url);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.length >= from) {
+                contents.get(entry.hash);
+            } else {
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            if (from > 0) {
+                append(new File(dir, entry.hash), file, from);
+            } else {
+                copy(new File(dir, entry.hash), file);
+            }
+        } catch (NoSuchFileException e) {
+            //    evicted or deleted
+            synchronized (this) {
+                remove(key, entry);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Stores content of the downloaded file for the URL, files larger than the cache aren't stored
+     */
+    public void put(String url, File file, String etag, String lastModified) throws IOException {
+        long length = file.length();
+        if (length > maxSize) {
+            return;
+        }
+        String hash = hash(file);
+        boolean stored;
+        synchronized (this) {
+            stored = contents.containsKey(hash);
+        }
+        //    content is copied without the lock and isn't visible until it's complete
+        File temp = stored ? null : File.createTempFile(hash, ".tmp", dir);
+        try {
+            if (temp != null) {
+                Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            synchronized (this) {
+                if (!contents.containsKey(hash)) {
+                    if (temp == null) {
+                        //    evicted during the call
+                        return;
+                    }
+                    Files.move(temp.toPath(), new File(dir, hash).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    contents.put(hash, length);
+                    size += length;
+                }
+                String key = normalize(url);
+                Entry previous = entries.put(key, new Entry(hash, length, etag, lastModified));
+                if (previous != null && !previous.hash.equals(hash)) {
+                    release(previous.hash);
+                }
+                evict();
+            }
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes the URL, its content is deleted if no other URL refers to it
+     */
+    public synchronized void remove(String url) {
+        String key = normalize(url);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    /**
+     * Writes the index to the directory, entries are written in LRU order
+     */
+    public synchronized void save() throws IOException {
+        Map<String, StringBuilder> lines = new LinkedHashMap<>();
+        for (String hash : contents.keySet()) {
+            lines.put(hash, new StringBuilder());
+        }
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            lines.get(value.hash).append(encode(entry.getKey())).append('\t').append(value.hash).append('\t')
+                    .append(encode(value.etag)).append('\t').append(encode(value.lastModified)).append('\n');
+        }
+        File index = new File(dir, INDEX);
+        File temp = new File(dir, INDEX + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+            for (StringBuilder line : lines.values()) {
+                out.write(line.toString());
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * URL without fragment, default port and case differences of scheme and host, unparsable URL is used as is
+     */
+    static String normalize(String url) {
+        try {
+            URI uri = new URI(url);
+            String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : null;
+            String host = uri.getHost() != null ? uri.getHost().toLowerCase(Locale.ROOT) : null;
+            int port = uri.getPort();
+            if ("http".equals(scheme) && port == 80 || "https".equals(scheme) && port == 443) {
+                port = -1;
+            }
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            return scheme + "://" + (uri.getRawUserInfo() != null ? uri.getRawUserInfo() + "@" : "") + host
+                    + (port != -1 ? ":" + port : "") + path + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            release(entry.hash);
+        }
+    }
+
+    // deletes content which isn't referred
+    private void release(String hash) {
+        for (Entry entry : entries.values()) {
+            if (entry.hash.equals(hash)) {
+                return;
+            }
+        }
+        Long length = contents.remove(hash);
+        if (length != null) {
+            size -= length;
+            new File(dir, hash).delete();
+        }
+    }
+
+    // removes the least recently used content with its URLs until the size fits the limit
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = contents.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> content = iterator.next();
+            String hash = content.getKey();
+            iterator.remove();
+            size -= content.getValue();
+            entries.values().removeIf(entry -> entry.hash.equals(hash));
+            new File(dir, hash).delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void copy(File content, File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        if (hardLinks) {
+            try {
+                Files.createLink(file.toPath(), content.toPath());
+                return;
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (UnsupportedOperationException | IOException e) {
+                //    links aren't supported, or the cache is on other file system
+            }
+        }
+        Files.copy(content.toPath(), file.toPath());
+    }
+
+    /**
+     * Replaces the hard linked file by its own copy of the first bytes, so writes to the file don't change
+     * cached content and other files which are linked to it. The file is replaced anyway if the file system
+     * doesn't report count of links
+     */
+    static void detach(File file, long keep) throws IOException {
+        Path path = file.toPath();
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            if (((Number) Files.getAttribute(path, "unix:nlink")).intValue() <= 1) {
+                return;
+            }
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            //    count of links is unknown
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            if (keep > 0) {
+                try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                    for (long position = 0, size = Math.min(keep, in.size()); position < size; ) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+            //    the name stays taken, so other file can't be created with it meanwhile
+            Files.move(temp.toPath(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private void append(File content, File file, long from) throws IOException {
+        detach(file, from);
+        try (FileChannel in = FileChannel.open(content.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(from);
+            out.position(from);
+            for (long position = from, size = in.size(); position < size; ) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return Checksum.toHex(digest.digest());
+    }
+
+    private static String encode(String value) {
+        try {
+            return value != null ? URLEncoder.encode(value, "UTF-8") : "";
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Cached version of a URL
+     */
+    public static class Entry {
+        private final String hash;  // SHA-256 of the content in hex
+        private final long length;
+        private final String etag;  //null if the response had no ETag
+        private final String lastModified;  //null if the response had no Last-Modified
+
+        Entry(String hash, long length, String etag, String lastModified) {
+            this.hash = hash;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package ru.downloadmanager;
+
+
+/**
+ * Constant set of items changed since some version of download manager
+ */
+public class DownloadChanges {
+
+    private final long version;
+    private final boolean full;
+    private final DownloadItem[] items;  // in order of changes
+    private final int[] removed;
+
+    public DownloadChanges(long version, boolean full, DownloadItem[] items, int[] removed) {
+        this.version = version;
+        this.full = full;
+        this.items = items;
+        this.removed = removed;
+    }
+
+    /**
+     * @return version to request the next changes
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if requested version is too old, so items contain whole queue and other items must be dropped
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return added and updated items
+     */
+    public DownloadItem[] getItems() {
+        return items;
+    }
+
+    /**
+     * @return ids of removed items
+     */
+    public int[] getRemoved() {
+        return removed;
+    }
+}
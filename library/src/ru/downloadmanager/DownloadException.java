@@ -3,7 +3,18 @@ package ru.downloadmanager;
 
 public class DownloadException extends Exception {
 
+    private final int statusCode;  //UNKNOWN if the error isn't caused by status code
+
     public DownloadException(String message) {
+        this(message, DownloadService.UNKNOWN);
+    }
+
+    public DownloadException(String message, int statusCode) {
         super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
     }
 }
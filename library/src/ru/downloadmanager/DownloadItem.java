@@ -1,6 +1,8 @@
 package ru.downloadmanager;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
 /**
 * Constant snapshot of downloading item state
@@ -14,6 +16,12 @@ public class DownloadItem {
     private final DownloadItemState state;
     private final Throwable error;
 
+    //    optional settings are set by the manager before the snapshot is published
+    private int priority = 0;
+    private int retries = 0;
+    private List<String> mirrors = Collections.emptyList();
+    private Checksum checksum = null;  //null if content isn't verified
+
     public DownloadItem(int id, String url, File file, long total, long received, DownloadItemState state, Throwable error) {
         this.id = id;
         this.url = url;
@@ -48,6 +56,36 @@ public class DownloadItem {
         return error;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return count of retries after transient errors since the last start
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @return other URLs of the same file, empty list if the item has one URL
+     */
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    void setMirrors(List<String> mirrors) {
+        this.mirrors = mirrors;
+    }
+
     public boolean isDone() {
         return state == DownloadItemState.DONE;
     }
@@ -63,4 +101,15 @@ public class DownloadItem {
     public DownloadItemState getState() {
         return state;
     }
+
+    /**
+     * @return expected checksum of the file, null if it isn't verified
+     */
+    public Checksum getChecksum() {
+        return checksum;
+    }
+
+    void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
 }
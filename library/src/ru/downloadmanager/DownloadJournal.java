@@ -0,0 +1,323 @@
+package ru.downloadmanager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Supplier;
+
+
+/**
+ * Append-only log of item events: add, checksum, state, priority, checkpoint and remove.
+ * Each event is one text line which is written to the OS at once, so the journal survives crash of JVM,
+ * incomplete last line is ignored on reading. Journal is rewritten with current items by 'compact'
+ * when count of appended events is much larger than count of items.
+ * Write errors stop the journal, the first one is kept.
+ * Thread-safe
+ */
+class DownloadJournal {
+
+    private static final int MIN_COMPACTION_RECORDS = 10000;
+
+    private final File file;
+    private Writer out;
+    private int records = 0;  // count of records in the file
+    private IOException error;
+    private int nextId = 0;  // id for the next item, it isn't less than ids of removed items
+
+    DownloadJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return last state of items which aren't removed, in order of adding
+     */
+    LinkedHashMap<Integer, Entry> read() throws IOException {
+        LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>();
+        if (!file.exists()) {
+            return entries;
+        }
+        boolean completed;  // last line ends with line feed
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            completed = in.length() == 0 || readLast(in) == '\n';
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String next = in.readLine();
+            while (next != null) {
+                String line = next;
+                next = in.readLine();
+                if (next == null && !completed) {
+                    break;  // incomplete line after crash
+                }
+                String[] fields = line.split("\t", -1);
+                try {
+                    int id = Integer.parseInt(fields[1]);
+                    Entry entry = entries.get(id);
+                    switch (fields[0]) {
+                        case "next":
+                            nextId = Math.max(nextId, id);
+                            break;
+                        case "add":
+                            nextId = Math.max(nextId, id + 1);
+                            entry = new Entry(id, decode(fields[3]), new File(decode(fields[4])));
+                            entry.priority = Integer.parseInt(fields[2]);
+                            List<String> mirrors = new ArrayList<>();
+                            for (int i = 5; i < fields.length; i++) {
+                                mirrors.add(decode(fields[i]));
+                            }
+                            entry.mirrors = mirrors;
+                            entries.put(id, entry);
+                            break;
+                        case "checksum":
+                            entry.checksum = Checksum.parse(decode(fields[2]));
+                            break;
+                        case "state":
+                            entry.state = DownloadItemState.valueOf(fields[2]);
+                            entry.error = fields.length > 3 ? decode(fields[3]) : null;
+                            break;
+                        case "priority":
+                            entry.priority = Integer.parseInt(fields[2]);
+                            break;
+                        case "checkpoint":
+                            entry.checkpoint = Long.parseLong(fields[2]);
+                            entry.total = Long.parseLong(fields[3]);
+                            break;
+                        case "remove":
+                            entries.remove(id);
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    //    record of unknown item or from newer version
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return id for the next item after 'read'
+     */
+    int getNextId() {
+        return nextId;
+    }
+
+    private static int readLast(RandomAccessFile in) throws IOException {
+        in.seek(in.length() - 1);
+        return in.read();
+    }
+
+    synchronized void add(int id, String url, File file, int priority, List<String> mirrors) {
+        append(addRecord(id, url, file, priority, mirrors));
+    }
+
+    /**
+     * Appends add and checksum records of new entries, they are written to the OS at once
+     */
+    synchronized void addAll(Collection<Entry> entries) {
+        for (Entry entry : entries) {
+            write(addRecord(entry.id, entry.url, entry.file, entry.priority, entry.mirrors));
+            if (entry.checksum != null) {
+                write("checksum", entry.id, encode(entry.checksum.toString()));
+            }
+        }
+        flush();
+    }
+
+    // mirrors are optional fields after the file
+    private static Object[] addRecord(int id, String url, File file, int priority, List<String> mirrors) {
+        Object[] fields = new Object[5 + mirrors.size()];
+        fields[0] = "add";
+        fields[1] = id;
+        fields[2] = priority;
+        fields[3] = encode(url);
+        fields[4] = encode(file.getPath());
+        for (int i = 0; i < mirrors.size(); i++) {
+            fields[5 + i] = encode(mirrors.get(i));
+        }
+        return fields;
+    }
+
+    synchronized void checksum(int id, Checksum checksum) {
+        append("checksum", id, encode(checksum.toString()));
+    }
+
+    synchronized void state(int id, DownloadItemState state, Throwable error) {
+        if (error != null) {
+            append("state", id, state, encode(error.toString()));
+        } else {
+            append("state", id, state);
+        }
+    }
+
+    synchronized void priority(int id, int priority) {
+        append("priority", id, priority);
+    }
+
+    synchronized void checkpoint(int id, long length, long total) {
+        append("checkpoint", id, length, total);
+    }
+
+    synchronized void remove(int id) {
+        append("remove", id);
+    }
+
+    synchronized boolean needsCompaction(int itemsCount) {
+        return out != null && records > Math.max(MIN_COMPACTION_RECORDS, 4 * itemsCount);
+    }
+
+    /**
+     * Replaces the journal by records of the entries and opens it for appending.
+     * Entries are taken under the journal lock, so events which are appended concurrently aren't lost.
+     */
+    synchronized void compact(Supplier<Collection<Entry>> entriesSupplier, int nextId) {
+        if (error != null) {
+            return;
+        }
+        close();
+        Collection<Entry> entries = entriesSupplier.get();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temp)) {
+                out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+                records = 0;
+                append("next", nextId);
+                for (Entry entry : entries) {
+                    append(addRecord(entry.id, entry.url, entry.file, entry.priority, entry.mirrors));
+                    if (entry.checksum != null) {
+                        append("checksum", entry.id, encode(entry.checksum.toString()));
+                    }
+                    if (entry.state != DownloadItemState.NEW) {
+                        append("state", entry.id, entry.state, entry.error != null ? encode(entry.error) : null);
+                    }
+                    if (entry.checkpoint > 0 || entry.total != DownloadService.UNKNOWN) {
+                        append("checkpoint", entry.id, entry.checkpoint, entry.total);
+                    }
+                }
+                stream.getFD().sync();
+                out = null;
+            }
+            if (error != null) {
+                return;
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            error = e;
+            out = null;
+        }
+    }
+
+    synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                error = e;
+            }
+            out = null;
+        }
+    }
+
+    synchronized IOException getError() {
+        return error;
+    }
+
+    // write a record of tab separated fields to the OS
+    private void append(Object... fields) {
+        write(fields);
+        flush();
+    }
+
+    // write a record to the buffer, null fields are skipped
+    private void write(Object... fields) {
+        if (out == null) {
+            return;
+        }
+        try {
+            StringBuilder line = new StringBuilder();
+            for (Object field : fields) {
+                if (field != null) {
+                    if (line.length() > 0) {
+                        line.append('\t');
+                    }
+                    line.append(field);
+                }
+            }
+            out.write(line.append('\n').toString());
+            records++;
+        } catch (IOException e) {
+            error = e;
+            close();
+            out = null;
+        }
+    }
+
+    private void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            error = e;
+            close();
+            out = null;
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Journaled state of an item
+     */
+    static class Entry {
+        final int id;
+        final String url;
+        final File file;
+        int priority = 0;
+        List<String> mirrors = Collections.emptyList();  // other URLs of the item
+        Checksum checksum;  // expected checksum, null if content isn't verified
+        DownloadItemState state = DownloadItemState.NEW;
+        String error;  // description of the error
+        long checkpoint = 0;  // length of the file part which can be resumed
+        long total = DownloadService.UNKNOWN;
+
+        Entry(int id, String url, File file) {
+            this.id = id;
+            this.url = url;
+            this.file = file;
+        }
+    }
+}
@@ -2,11 +2,38 @@ package ru.downloadmanager;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 
 /**
@@ -17,22 +44,282 @@ public class DownloadManager {
 
     protected DownloadService service;
 
-    private ThreadPoolExecutor pool;
+    private ExecutorService pool;
+    private boolean ownPool;  // pool size follows count of active tasks
     private File downloadDir;
 
     private LinkedHashMap<Integer, Item> queue = new LinkedHashMap<>();
     private Object sync = queue;
     private int counter = 0;
+    private Scheduler<Item> scheduler;  // items waiting for a slot, guarded by 'sync'
+    private volatile boolean shutdown = false;
+    private int tasksCount = 0;  // submitted tasks which haven't returned yet, guarded by 'sync'
+    private volatile DownloadJournal journal;  //null if items aren't journaled
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+    private volatile boolean coalesce = true;
+    private final Map<String, Item> inFlight = new HashMap<>();  // items which load a URL for duplicates by 'coalesceKey', guarded by 'sync'
+    private final Map<File, Item> writing = new HashMap<>();  // unfinished items by absolute file, guarded by 'sync'
+
+    //    speed limits, item also can have its own limiter
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final ConcurrentHashMap<String, RateLimiter> hostRateLimiters = new ConcurrentHashMap<>();
+
+    private static final long DEFAULT_BUFFER_BUDGET = 64 * 1024 * 1024;
+    private final BufferPool bufferPool = new BufferPool(DEFAULT_BUFFER_BUDGET);  // transfer buffers of all downloads
+
+    //    watchdog which restarts stalled downloads, see 'checkStalls'
+    private static final long WATCHDOG_PERIOD = 1000;  //ms
+    private static final long PROGRESS_TOUCH_PERIOD = 200;  //ms, pace of UI polling
+    private volatile long stallTimeout = 60000;  //ms without progress, zero disables the check
+    private volatile long minSpeed = 0;  //bytes per second, zero disables the check
+    private volatile long speedWindow = 30000;  //ms
+    private final ConcurrentHashMap<Item, Watch> running = new ConcurrentHashMap<>();  // items which are downloaded now
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //    totals of items in queue, they are changed by 'account' method
+    private final LongAdder knownTotal = new LongAdder();
+    private final LongAdder receivedTotal = new LongAdder();
+    private final LongAdder unknownCount = new LongAdder();  // count of items with unknown total
+    private final AtomicIntegerArray stateCounts = new AtomicIntegerArray(DownloadItemState.values().length);
+
+    //    last change version of each item and removed items, see 'touch'
+    private static final int REMOVED_HISTORY_SIZE = 10000;
+    private final AtomicLong version = new AtomicLong();
+    private final ConcurrentSkipListMap<Long, Item> changed = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, Integer> removed = new ConcurrentSkipListMap<>();
+    private volatile long removedHorizon = 0;  // removes before this version are forgotten
+    private int removedCount = 0;  // guarded by 'removed' monitor
+    private final ReadWriteLock versionLock = new ReentrantReadWriteLock();  // read lock is taken by writers of changes
 
     public DownloadManager(int threadsCount, File downloadDir) {
         service = new DownloadService();
+        service.setBufferPool(bufferPool);
         pool = new ThreadPoolExecutor(threadsCount, threadsCount, 1, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        ownPool = true;
+        scheduler = new Scheduler<>(threadsCount);
         this.downloadDir = downloadDir;
+        watchdog.scheduleWithFixedDelay(this::checkStalls, WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Runs each download as a separate task of the executor, count of active downloads is limited by the manager.
+     * It is intended for executors which start a thread per task, like the one from 'newVirtualThreadExecutor'.
+     */
+    public DownloadManager(ExecutorService executor, int maxActive, File downloadDir) {
+        service = new DownloadService();
+        service.setBufferPool(bufferPool);
+        pool = executor;
+        scheduler = new Scheduler<>(maxActive);
+        this.downloadDir = downloadDir;
+        watchdog.scheduleWithFixedDelay(this::checkStalls, WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return executor which starts a virtual thread for each task if runtime supports it (Java 21+),
+     *         otherwise executor which starts a platform thread for each task
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Sets count of concurrent downloads, also pool size if the manager owns the pool
+     */
     public void setThreadsCount(int count) {
-        pool.setCorePoolSize(count);
-        pool.setMaximumPoolSize(count);
+        synchronized (sync) {
+            if (ownPool) {
+                ThreadPoolExecutor threadPool = (ThreadPoolExecutor) pool;
+                if (count > threadPool.getMaximumPoolSize()) {
+                    threadPool.setMaximumPoolSize(count);
+                    threadPool.setCorePoolSize(count);
+                } else {
+                    threadPool.setCorePoolSize(count);
+                    threadPool.setMaximumPoolSize(count);
+                }
+            }
+            scheduler.setMaxActive(count);
+            dispatch();
+        }
+    }
+
+    /**
+     * Sets default limit of concurrent downloads from one host, zero is unlimited
+     */
+    public void setHostLimit(int limit) {
+        synchronized (sync) {
+            scheduler.setHostLimit(limit);
+            dispatch();
+        }
+    }
+
+    public int getHostLimit() {
+        synchronized (sync) {
+            return scheduler.getHostLimit();
+        }
+    }
+
+    /**
+     * Sets limit of concurrent downloads from the host instead of default one, negative value restores default
+     */
+    public void setHostLimit(String host, int limit) {
+        synchronized (sync) {
+            scheduler.setHostLimit(host.toLowerCase(), limit);
+            dispatch();
+        }
+    }
+
+    public int getHostLimit(String host) {
+        synchronized (sync) {
+            return scheduler.getHostLimit(host.toLowerCase());
+        }
+    }
+
+    public long getAgingInterval() {
+        synchronized (sync) {
+            return scheduler.getAgingInterval();
+        }
+    }
+
+    /**
+     * Sets time in milliseconds after which waiting item gains one level of priority, zero disables aging
+     */
+    public void setAgingInterval(long agingInterval) {
+        synchronized (sync) {
+            scheduler.setAgingInterval(agingInterval);
+        }
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * Whether an item whose URL and checksum are equal to an unfinished item waits for it instead of own download.
+     * The file of the loaded item is copied to the waiting items, they get its error if it fails,
+     * and they are started themselves if it's stopped or removed.
+     * Items of the same file never load it concurrently, they are started one by one even if coalescing is off.
+     */
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets policy of retries after transient errors, RetryPolicy.NONE disables them
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public long getStallTimeout() {
+        return stallTimeout;
+    }
+
+    /**
+     * Time in milliseconds without progress after which the download is restarted from the loaded part,
+     * zero disables it. Waits of speed limits and retries aren't counted.
+     */
+    public void setStallTimeout(long stallTimeout) {
+        this.stallTimeout = stallTimeout;
+    }
+
+    public long getMinSpeed() {
+        return minSpeed;
+    }
+
+    /**
+     * Download which is slower than this speed in bytes per second during the speed window is restarted
+     * from the loaded part, zero disables it
+     */
+    public void setMinSpeed(long minSpeed) {
+        this.minSpeed = minSpeed;
+    }
+
+    public long getSpeedWindow() {
+        return speedWindow;
+    }
+
+    /**
+     * Time in milliseconds over which speed is measured for the minimal speed check
+     */
+    public void setSpeedWindow(long speedWindow) {
+        this.speedWindow = speedWindow;
+    }
+
+    public long getRateLimit() {
+        return rateLimiter.getRate();
+    }
+
+    /**
+     * Sets limit of total download speed in bytes per second, zero is unlimited.
+     * Speed which isn't used by items with own limits is shared by other items.
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        rateLimiter.setRate(bytesPerSecond);
+    }
+
+    public long getHostRateLimit(String host) {
+        RateLimiter limiter = hostRateLimiters.get(host.toLowerCase());
+        return limiter == null ? 0 : limiter.getRate();
+    }
+
+    /**
+     * Sets limit of total download speed from the host in bytes per second, zero is unlimited
+     */
+    public void setHostRateLimit(String host, long bytesPerSecond) {
+        if (bytesPerSecond == 0) {
+            hostRateLimiters.remove(host.toLowerCase());
+        } else {
+            hostRateLimiters.computeIfAbsent(host.toLowerCase(), key -> new RateLimiter()).setRate(bytesPerSecond);
+        }
+    }
+
+    public long getItemRateLimit(int id) {
+        synchronized (sync) {
+            Item item = queue.get(id);
+            RateLimiter limiter = item == null ? null : item.rateLimiter;
+            return limiter == null ? 0 : limiter.getRate();
+        }
+    }
+
+    /**
+     * Sets limit of the item download speed in bytes per second, zero is unlimited.
+     * Non-existent tasks will be ignored.
+     */
+    public void setItemRateLimit(int id, long bytesPerSecond) {
+        synchronized (sync) {
+            Item item = queue.get(id);
+            if (item == null) {
+                return;
+            }
+            if (bytesPerSecond == 0) {
+                item.rateLimiter = null;
+            } else if (item.rateLimiter == null) {
+                item.rateLimiter = new RateLimiter(bytesPerSecond);
+            } else {
+                item.rateLimiter.setRate(bytesPerSecond);
+            }
+        }
+    }
+
+    /**
+     * Counts of pending and active items of hosts which have any
+     */
+    public HostStats[] getHostStats() {
+        synchronized (sync) {
+            return scheduler.getHostStats();
+        }
     }
 
     public String getUserAgent() {
@@ -51,28 +338,512 @@ public class DownloadManager {
         service.setRedirectionLimit(redirectionLimit);
     }
 
+    public HttpEngine getEngine() {
+        return service.getEngine();
+    }
+
+    public void setEngine(HttpEngine engine) {
+        service.setEngine(engine);
+    }
+
+    public int getSegmentsCount() {
+        return service.getSegmentsCount();
+    }
+
+    public void setSegmentsCount(int segmentsCount) {
+        service.setSegmentsCount(segmentsCount);
+    }
+
+    public int getBlockSize() {
+        return service.getBlockSize();
+    }
+
+    public void setBlockSize(int blockSize) {
+        service.setBlockSize(blockSize);
+    }
+
+    public boolean isPreallocate() {
+        return service.isPreallocate();
+    }
+
+    /**
+     * Whether files are extended to their full size before loading, free space is checked anyway
+     */
+    public void setPreallocate(boolean preallocate) {
+        service.setPreallocate(preallocate);
+    }
+
+    public int getMappedWindow() {
+        return service.getMappedWindow();
+    }
+
+    /**
+     * Size of the file region which is mapped to memory at once, zero disables memory-mapped output
+     */
+    public void setMappedWindow(int mappedWindow) {
+        service.setMappedWindow(mappedWindow);
+    }
+
+    public ValidatorStore getValidatorStore() {
+        return service.getValidatorStore();
+    }
 
     /**
-     * Synchronously add task
+     * Enables sync mode, an added URL with stored validators reuses its file and finishes without loading if it isn't modified
+     */
+    public void setValidatorStore(ValidatorStore validatorStore) {
+        service.setValidatorStore(validatorStore);
+    }
+
+    public DownloadCache getCache() {
+        return service.getCache();
+    }
+
+    /**
+     * Cache of downloaded files, it may be shared with other managers which load the same URLs
+     */
+    public void setCache(DownloadCache cache) {
+        service.setCache(cache);
+    }
+
+    /**
+     * Pool of transfer buffers, it gives usage metrics
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public long getBufferBudget() {
+        return bufferPool.getBudget();
+    }
+
+    /**
+     * Sets limit of memory of transfer buffers for all downloads, downloads read smaller blocks
+     * or wait when it is exhausted
+     */
+    public void setBufferBudget(long budget) {
+        bufferPool.setBudget(budget);
+    }
+
+    public WritePipeline getWritePipeline() {
+        return service.getWritePipeline();
+    }
+
+    /**
+     * Sets pipeline which writes files in its threads, null to write them in downloading threads.
+     * The pipeline isn't shut down with the manager.
+     */
+    public void setWritePipeline(WritePipeline writePipeline) {
+        service.setWritePipeline(writePipeline);
+    }
+
+
+    /**
+     * Restores items from the journal file and writes item changes to it, so the queue survives restart.
+     * Stopped, failed and completed items keep their state, other items are resumed from the last checkpoint.
+     * It must be called before adding of items.
+     */
+    public void openJournal(File file) throws IOException {
+        DownloadJournal newJournal = new DownloadJournal(file);
+        Collection<DownloadJournal.Entry> entries = newJournal.read().values();
+        synchronized (sync) {
+            if (journal != null || !queue.isEmpty()) {
+                throw new IllegalStateException("Journal must be opened before adding of items");
+            }
+            counter = Math.max(counter, newJournal.getNextId());
+            List<Item> resumed = new ArrayList<>();
+            for (DownloadJournal.Entry entry : entries) {
+                Item item = new Item();
+                item.id = entry.id;
+                item.url = entry.url;
+                item.mirrors = entry.mirrors;
+                item.checksum = entry.checksum;
+                item.host = getHost(entry.url);
+                item.file = entry.file;
+                item.priority = entry.priority;
+                item.total = entry.total;
+                if (entry.state == DownloadItemState.STARTED && entry.file.exists()) {
+                    //    part after the checkpoint can be lost or not continuous
+                    try (RandomAccessFile out = new RandomAccessFile(entry.file, "rw")) {
+                        out.setLength(Math.min(out.length(), entry.checkpoint));
+                    }
+                }
+                item.received = entry.file.exists() ? entry.file.length() : 0;
+                item.checkpoint = item.received;
+                if (entry.state == DownloadItemState.NEW || entry.state == DownloadItemState.STARTED) {
+                    resumed.add(item);
+                } else {
+                    item.error = entry.state == DownloadItemState.ERROR ? new DownloadException(entry.error) : null;
+                    item.state = entry.state;
+                }
+                item.journaledState = item.state;
+                queue.put(item.id, item);
+                counter = Math.max(counter, item.id + 1);
+                account(item);
+            }
+            journal = newJournal;
+            compactJournal(true);
+            for (Item item : resumed) {
+                startInternal(item);
+            }
+        }
+    }
+
+    /**
+     * @return the first error of journal writing, journal is stopped after it
+     */
+    public IOException getJournalError() {
+        DownloadJournal journal = this.journal;
+        return journal == null ? null : journal.getError();
+    }
+
+    // rewrite the journal if it is too long
+    private void compactJournal(boolean force) {
+        DownloadJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        synchronized (sync) {
+            if (force || journal.needsCompaction(queue.size())) {
+                journal.compact(() -> {
+                    List<DownloadJournal.Entry> entries = new ArrayList<>();
+                    for (Item item : queue.values()) {
+                        DownloadJournal.Entry entry = new DownloadJournal.Entry(item.id, item.url, item.file);
+                        entry.mirrors = item.mirrors;
+                        entry.checksum = item.checksum;
+                        entry.priority = item.priority;
+                        entry.state = item.journaledState;
+                        Throwable error = item.error;
+                        entry.error = error == null ? null : error.toString();
+                        entry.checkpoint = item.checkpoint;
+                        entry.total = item.total;
+                        entries.add(entry);
+                    }
+                    return entries;
+                }, counter);
+            }
+        }
+    }
+
+    /**
+     * Synchronously add task with zero priority
      */
     public DownloadItem add(String url, CompleteListener completeListener) throws IOException {
-        File file = DownloadService.createFileForURL(url, downloadDir);
+        return add(url, 0, completeListener);
+    }
+
+    /**
+     * Synchronously add task, items with higher priority are started first
+     */
+    public DownloadItem add(String url, int priority, CompleteListener completeListener) throws IOException {
+        return add(Collections.singletonList(url), priority, completeListener);
+    }
+
+    /**
+     * Synchronously add task which loads one file from several mirrors, see 'DownloadService.download' for mirrors.
+     * File name is taken from the first URL, also host limits are applied to its host.
+     */
+    public DownloadItem add(List<String> urls, int priority, CompleteListener completeListener) throws IOException {
+        return add(urls, priority, null, completeListener);
+    }
+
+    /**
+     * Synchronously add task whose file is verified by the checksum during download,
+     * item with other content gets ERROR state with DownloadException
+     */
+    public DownloadItem add(String url, int priority, Checksum checksum, CompleteListener completeListener) throws IOException {
+        return add(Collections.singletonList(url), priority, checksum, completeListener);
+    }
+
+    /**
+     * Synchronously add task which loads one file from several mirrors and verifies it by the checksum
+     * @param checksum expected checksum or null
+     */
+    public DownloadItem add(List<String> urls, int priority, Checksum checksum, CompleteListener completeListener) throws IOException {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No URLs");
+        }
+        String url = urls.get(0);
+        File file = getStoredFile(url);
+        if (file == null) {
+            file = DownloadService.createFileForURL(url, downloadDir);
+        }
         synchronized (sync) {
-            Item item = new Item();
-            item.id = counter++;
-            item.url = url;
-            item.file = file;
-            item.total = DownloadService.UNKNOWN;
-            item.received = 0;
-            item.completeListener = completeListener;
+            Item item = createItem(url, urls.subList(1, urls.size()), checksum, file, priority, completeListener);
+            if (journal != null) {
+                journal.add(item.id, url, file, priority, item.mirrors);
+                if (checksum != null) {
+                    journal.checksum(item.id, checksum);
+                }
+            }
             startInternal(item);
             queue.put(item.id, item);
+            account(item);
+            compactJournal(false);
             return convert(item);
         }
     }
 
+    /**
+     * Synchronously add tasks with zero priority, see 'addAll(urls, priority, listeners)'
+     */
+    public List<DownloadItem> addAll(Collection<String> urls, Function<String, CompleteListener> listeners) throws IOException {
+        return addAll(urls, 0, listeners);
+    }
+
+    /**
+     * Synchronously add tasks for many URLs like 'add' with less overhead: files are created after one listing
+     * of the download directory, items are inserted under one lock and journaled by one write,
+     * and they are scheduled after all of them are inserted.
+     * @param listeners gives listener for each URL, it may return null
+     * @return items in order of URLs
+     */
+    public List<DownloadItem> addAll(Collection<String> urls, int priority, Function<String, CompleteListener> listeners) throws IOException {
+        List<String> urlList = new ArrayList<>(urls);
+        File[] files = new File[urlList.size()];
+        List<String> newUrls = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            files[i] = getStoredFile(urlList.get(i));
+            if (files[i] == null) {
+                newUrls.add(urlList.get(i));
+            }
+        }
+        Iterator<File> newFiles = DownloadService.createFilesForURLs(newUrls, downloadDir).iterator();
+        CompleteListener[] completeListeners = new CompleteListener[files.length];
+        for (int i = 0; i < files.length; i++) {
+            if (files[i] == null) {
+                files[i] = newFiles.next();
+            }
+            completeListeners[i] = listeners.apply(urlList.get(i));
+        }
+
+        synchronized (sync) {
+            List<Item> items = new ArrayList<>(files.length);
+            for (int i = 0; i < files.length; i++) {
+                items.add(createItem(urlList.get(i), Collections.<String>emptyList(), null, files[i], priority, completeListeners[i]));
+            }
+            if (journal != null) {
+                List<DownloadJournal.Entry> entries = new ArrayList<>(items.size());
+                for (Item item : items) {
+                    DownloadJournal.Entry entry = new DownloadJournal.Entry(item.id, item.url, item.file);
+                    entry.priority = priority;
+                    entries.add(entry);
+                }
+                journal.addAll(entries);
+            }
+            List<DownloadItem> result = new ArrayList<>(items.size());
+            for (Item item : items) {
+                queue.put(item.id, item);
+                account(item);
+                schedule(item);
+                result.add(convert(item));
+            }
+            dispatch();
+            compactJournal(false);
+            return result;
+        }
+    }
+
+    // new item, it's called under 'sync'
+    private Item createItem(String url, List<String> mirrors, Checksum checksum, File file, int priority, CompleteListener completeListener) {
+        Item item = new Item();
+        item.id = counter++;
+        item.url = url;
+        item.mirrors = Collections.unmodifiableList(new ArrayList<>(mirrors));
+        item.checksum = checksum;
+        item.host = getHost(url);
+        item.file = file;
+        item.priority = priority;
+        item.total = DownloadService.UNKNOWN;
+        item.received = 0;
+        item.completeListener = completeListener;
+        return item;
+    }
+
+    private static boolean isSameFile(Item item, Item other) {
+        return item.file.getAbsoluteFile().equals(other.file.getAbsoluteFile());
+    }
+
+    // in sync mode the stored file is shared by the leader and followers of the same URL, it's called under 'sync'
+    private static boolean sharesFile(Item item) {
+        if (item.leader != null && isSameFile(item, item.leader)) {
+            return true;
+        }
+        for (Item follower : item.followers) {
+            if (isSameFile(item, follower)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // in sync mode the file of the previous download is checked for updates instead of a new copy
+    private File getStoredFile(String url) {
+        ValidatorStore store = service.getValidatorStore();
+        ValidatorStore.Entry stored = store != null ? store.get(url) : null;
+        return stored != null && stored.getFile().exists() ? stored.getFile() : null;
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase();
+        } catch (MalformedURLException e) {
+            return "";  // download will fail anyway
+        }
+    }
+
     private void startInternal(Item item) {
-        item.task = pool.submit(new DownloadTask(item));
+        schedule(item);
+        dispatch();
+    }
+
+    // item waits in the scheduler until it can be started, or waits for an unfinished item of the same URL.
+    // It's called under 'sync', 'dispatch' starts the item
+    private void schedule(Item item) {
+        item.task = null;
+        Item leader = coalesce ? inFlight.get(coalesceKey(item)) : null;
+        item.queued = false;
+        if (leader == null) {
+            //    in sync mode items of one URL share the stored file, so they never write it concurrently
+            leader = writing.get(item.file.getAbsoluteFile());
+            item.queued = leader != null;
+        }
+        if (leader != null && leader != item) {
+            item.leader = leader;
+            leader.followers.add(item);
+            return;
+        }
+        if (coalesce) {
+            inFlight.put(coalesceKey(item), item);
+        }
+        writing.put(item.file.getAbsoluteFile(), item);
+        scheduler.add(item.host, item, item.priority);
+    }
+
+    private static String coalesceKey(Item item) {
+        return DownloadCache.normalize(item.url) + (item.checksum != null ? "\t" + item.checksum : "");
+    }
+
+    /**
+     * Detaches items which wait for the completed item: they are started themselves if it's stopped or it only
+     * writes the same file, otherwise they become STARTED until 'completeFollowers'. It's called under 'sync'
+     * @return items to complete by the result of the item
+     */
+    private List<Item> release(Item item, DownloadItemState state) {
+        inFlight.remove(coalesceKey(item), item);
+        writing.remove(item.file.getAbsoluteFile(), item);
+        if (item.followers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Item> followers = item.followers;
+        item.followers = new ArrayList<>();
+        List<Item> result = new ArrayList<>(followers.size());
+        for (Item follower : followers) {
+            follower.leader = null;
+            if (state == DownloadItemState.STOPPED || follower.queued) {
+                startInternal(follower);
+            } else {
+                follower.state = DownloadItemState.STARTED;
+                account(follower);
+                result.add(follower);
+            }
+        }
+        return result;
+    }
+
+    // waiting items get copies of the loaded file or the error of the item, their files are removed like
+    // the file of the item, in sync mode items of the same URL share the stored file, so it isn't copied
+    private void completeFollowers(Item item, Throwable error, List<Item> followers) {
+        for (Item follower : followers) {
+            boolean shared = isSameFile(item, follower);
+            Throwable followerError = error;
+            if (error == null && !shared) {
+                try {
+                    Files.copy(item.file.toPath(), follower.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    followerError = e;
+                }
+            }
+            CompleteListener completeListener;
+            DownloadItemState state = follower.remove ? DownloadItemState.STOPPED
+                    : followerError != null ? DownloadItemState.ERROR : DownloadItemState.DONE;
+            synchronized (sync) {
+                if (followerError == null) {
+                    follower.total = follower.file.length();
+                    follower.received = follower.total;
+                }
+                completeListener = follower.completeListener;
+                follower.error = followerError;
+                follower.state = state;
+                account(follower);
+            }
+            if ((follower.remove || followerError != null && !retryPolicy.isRetryable(followerError)) && !shared) {
+                follower.file.delete();
+            }
+            if (completeListener != null) {
+                completeListener.onComplete(state);
+            }
+        }
+    }
+
+    /**
+     * Synchronously change priority of task, waiting task keeps its waiting time.
+     * Non-existent tasks will be ignored.
+     */
+    public void setPriority(int id, int priority) {
+        synchronized (sync) {
+            Item item = queue.get(id);
+            if (item == null || item.priority == priority) {
+                return;
+            }
+            item.priority = priority;
+            if (item.task == null) {
+                scheduler.setPriority(item, priority);
+            }
+            if (journal != null) {
+                journal.priority(id, priority);
+            }
+            account(item);
+        }
+    }
+
+    // submit items which have free slots, it's called under 'sync'
+    private void dispatch() {
+        if (shutdown) {
+            return;
+        }
+        for (Item item; (item = scheduler.poll()) != null; ) {
+            DownloadTask task = new DownloadTask(item);
+            FutureTask<Void> future = new FutureTask<Void>(task, null) {
+                @Override
+                protected void done() {
+                    if (isCancelled() && task.claim()) {
+                        task.cancelBeforeRun();
+                    }
+                }
+            };
+            item.task = future;
+            tasksCount++;
+            pool.execute(future);
+        }
+    }
+
+    // remove NEW item from the scheduler if it isn't submitted yet, it's called under 'sync'
+    private boolean cancelPending(Item item) {
+        if (item.state != DownloadItemState.NEW || item.task != null) {
+            return false;
+        }
+        if (item.leader != null) {
+            item.leader.followers.remove(item);
+            item.leader = null;
+        } else if (!scheduler.remove(item)) {
+            return false;
+        }
+        item.error = new InterruptedException();
+        item.state = DownloadItemState.STOPPED;
+        account(item);
+        release(item, DownloadItemState.STOPPED);
+        return true;
     }
 
     /**
@@ -84,9 +855,16 @@ public class DownloadManager {
         synchronized (sync) {
             item = queue.get(id);
             if (item != null && (item.state == DownloadItemState.STOPPED || item.state == DownloadItemState.ERROR)) {
-                item.state = DownloadItemState.NEW;
                 item.error = null;
-                //last file will overwrited
+                item.state = DownloadItemState.NEW;
+                item.retries = 0;
+                //    stopped download keeps only continuously loaded part
+                item.checkpoint = item.file.length();
+                if (journal != null) {
+                    journal.checkpoint(item.id, item.checkpoint, item.total);
+                }
+                account(item);
+                //download will be resumed from the existing file length
                 startInternal(item);
             }
         }
@@ -98,6 +876,7 @@ public class DownloadManager {
      */
     public void stop(int id) {
         Item item;
+        Future<?> task;
         CompleteListener callStopped = null;
         synchronized (sync) {
             item = queue.get(id);
@@ -106,26 +885,35 @@ public class DownloadManager {
             }
 
             //    don't wait in case of NEW state
-            if (item.state == DownloadItemState.NEW) {
-                item.state = DownloadItemState.STOPPED;
+            if (cancelPending(item)) {
+                callStopped = item.completeListener;
+            } else if (item.state == DownloadItemState.NEW) {
                 item.error = new InterruptedException();
+                item.state = DownloadItemState.STOPPED;
+                account(item);
+                release(item, DownloadItemState.STOPPED);
                 callStopped = item.completeListener;
             }
+            task = item.task;
         }
         if (callStopped != null) {
             callStopped.onComplete(DownloadItemState.STOPPED);
         }
-        item.task.cancel(true);  //can be executed concurrently
+        if (task != null) {
+            task.cancel(true);  //can be executed concurrently
+        }
     }
 
     /**
      * Asynchronously stop all tasks. Client needs to listen onStopped event.
      */
     public void stopAll() {
+        List<Integer> ids;
         synchronized (sync) {
-            for (Item item : queue.values()) {
-                item.task.cancel(true);
-            }
+            ids = new ArrayList<>(queue.keySet());
+        }
+        for (int id : ids) {
+            stop(id);
         }
     }
 
@@ -135,115 +923,574 @@ public class DownloadManager {
      */
     public void remove(int id) {
         Item item;
+        Future<?> task;
+        boolean pending;
+        boolean shared;
         synchronized (sync) {
             item = queue.remove(id);
             if (item == null) {
                 return;
             }
             item.remove = true;
+            shared = sharesFile(item);
+            pending = cancelPending(item);
+            account(item);
+            task = item.task;
+        }
+        if (pending) {
+            //    as for removed task which is stopped by cancel, the shared file is kept for other items
+            if (!shared) {
+                item.file.delete();
+            }
+            if (item.completeListener != null) {
+                item.completeListener.onComplete(DownloadItemState.STOPPED);
+            }
+        } else if (task != null) {
+            task.cancel(true);  //can be executed concurrently
         }
-        item.task.cancel(true);  //can be executed concurrently
     }
 
+    /**
+     * Stops all tasks and waits for them, items which are stopped by shutdown are resumed by the next 'openJournal'.
+     * Executor which is passed to the constructor isn't shut down, it's used by the caller.
+     */
     public void shutdown() throws InterruptedException {
-        pool.shutdown();
+        synchronized (sync) {
+            shutdown = true;
+        }
+        if (ownPool) {
+            pool.shutdown();
+        }
+        watchdog.shutdownNow();
         stopAll();
-        while (!pool.awaitTermination(10, TimeUnit.SECONDS)) ;
+        synchronized (sync) {
+            while (tasksCount > 0) {
+                sync.wait();
+            }
+        }
+        if (ownPool) {
+            while (!pool.awaitTermination(10, TimeUnit.SECONDS)) ;
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Totals without items, it doesn't depend on queue size
+     */
+    public DownloadSummary getSummary() {
+        int[] counts = new int[stateCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = stateCounts.get(i);
+        }
+        long total = unknownCount.sum() > 0 ? 0 : knownTotal.sum();
+        return new DownloadSummary(total, receivedTotal.sum(), counts);
     }
 
     public DownloadState getState() {
+        Item[] items;
         synchronized (sync) {
-            final int UNKNOWN = DownloadService.UNKNOWN;
-            long total = 0;
-            long received = 0;
-            DownloadItem[] resultItems = new DownloadItem[queue.size()];
-            int i = 0;
-            for (Item item : queue.values()) {
-                resultItems[i++] = convert(item);
-                if (item.error == null) {
-                    total = total == UNKNOWN ? UNKNOWN :
-                            item.state == DownloadItemState.DONE ? total + item.received :
-                            item.total == UNKNOWN ? UNKNOWN :
-                            item.total < item.received ? total + item.received :
-                            total + item.total;
-                    received += item.received;
+            items = queue.values().toArray(new Item[queue.size()]);
+        }
+        DownloadItem[] resultItems = new DownloadItem[items.length];
+        for (int i = 0; i < items.length; i++) {
+            resultItems[i] = convert(items[i]);
+        }
+        DownloadSummary summary = getSummary();
+        return new DownloadState(summary.getTotal(), summary.getReceived(), resultItems);
+    }
+
+    // apply current item values to the totals, item with error or removed item isn't counted
+    private void account(Item item) {
+        account(item, false);
+    }
+
+    // progress only change is registered at most once per PROGRESS_TOUCH_PERIOD, the pending one is registered
+    // by the next change or by the watchdog
+    private void account(Item item, boolean progress) {
+        final int UNKNOWN = DownloadService.UNKNOWN;
+        synchronized (item) {
+            long received = item.received;
+            long total = item.total;
+            DownloadItemState state = item.state;
+            boolean counted = !item.remove && item.error == null;
+
+            long newTotal = 0;
+            long newReceived = 0;
+            boolean newUnknown = false;
+            if (counted) {
+                newReceived = received;
+                if (state == DownloadItemState.DONE || total != UNKNOWN && total < received) {
+                    newTotal = received;
+                } else if (total == UNKNOWN) {
+                    newUnknown = true;
+                } else {
+                    newTotal = total;
+                }
+            }
+            knownTotal.add(newTotal - item.accountedTotal);
+            receivedTotal.add(newReceived - item.accountedReceived);
+            if (newUnknown != item.accountedUnknown) {
+                unknownCount.add(newUnknown ? 1 : -1);
+            }
+            DownloadItemState newState = item.remove ? null : state;
+            if (newState != item.accountedState) {
+                if (item.accountedState != null) {
+                    stateCounts.decrementAndGet(item.accountedState.ordinal());
+                }
+                if (newState != null) {
+                    stateCounts.incrementAndGet(newState.ordinal());
+                }
+            }
+            item.accountedTotal = newTotal;
+            item.accountedReceived = newReceived;
+            item.accountedUnknown = newUnknown;
+            item.accountedState = newState;
+
+            if (!progress || System.nanoTime() - item.touchTime >= TimeUnit.MILLISECONDS.toNanos(PROGRESS_TOUCH_PERIOD)) {
+                touch(item);
+            } else {
+                item.touchPending = true;
+            }
+            journal(item);
+        }
+    }
+
+    // write change of state to the journal, it's called under item monitor
+    private void journal(Item item) {
+        DownloadJournal journal = this.journal;
+        if (journal == null || item.journaledState == null) {
+            return;
+        }
+        DownloadItemState state = item.state;
+        if (item.remove) {
+            journal.remove(item.id);
+            item.journaledState = null;
+        } else if (state != item.journaledState && !(shutdown && state == DownloadItemState.STOPPED)) {
+            journal.state(item.id, state, item.error);
+            item.journaledState = state;
+        }
+    }
+
+    // register item change with new version, it's called under item monitor
+    private void touch(Item item) {
+        if (item.forgotten) {
+            return;
+        }
+        versionLock.readLock().lock();
+        try {
+            long newVersion = version.incrementAndGet();
+            if (item.remove) {
+                removed.put(newVersion, item.id);
+                item.forgotten = true;
+            } else {
+                changed.put(newVersion, item);
+            }
+            if (item.version != 0) {
+                changed.remove(item.version);
+            }
+            item.version = newVersion;
+        } finally {
+            versionLock.readLock().unlock();
+        }
+        item.touchTime = System.nanoTime();
+        item.touchPending = false;
+
+        if (item.remove) {
+            synchronized (removed) {
+                if (++removedCount > REMOVED_HISTORY_SIZE) {
+                    removedHorizon = Math.max(removedHorizon, removed.pollFirstEntry().getKey());
+                    removedCount--;
                 }
             }
-            return new DownloadState(total != UNKNOWN ? total : 0, received, resultItems);
         }
     }
 
+    /**
+     * Version which is increased by each change of items
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Returns items which are added, changed or removed after the version.
+     * Time doesn't depend on queue size, except the case when removes of requested version are already forgotten.
+     * Use version of result for the next call, zero for the first call.
+     */
+    public DownloadChanges getChangesSince(long since) {
+        //    wait for writers which have got their versions but haven't registered changes
+        long current;
+        versionLock.writeLock().lock();
+        try {
+            current = version.get();
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+
+        if (since < removedHorizon) {
+            return new DownloadChanges(current, true, getState().getItems(), new int[0]);
+        }
+        Item[] items = changed.tailMap(since, false).values().toArray(new Item[0]);
+        DownloadItem[] resultItems = new DownloadItem[items.length];
+        for (int i = 0; i < items.length; i++) {
+            resultItems[i] = convert(items[i]);
+        }
+        Integer[] removedIds = removed.tailMap(since, false).values().toArray(new Integer[0]);
+        int[] resultRemoved = new int[removedIds.length];
+        for (int i = 0; i < removedIds.length; i++) {
+            resultRemoved[i] = removedIds[i];
+        }
+        return new DownloadChanges(current, false, resultItems, resultRemoved);
+    }
+
+    /**
+     * @return segments of the last segmented download of the item, empty list if it isn't segmented,
+     *         null if there is no such item
+     */
+    public List<SegmentStats> getSegmentStats(int id) {
+        Item item;
+        synchronized (sync) {
+            item = queue.get(id);
+        }
+        return item == null ? null : item.segments;
+    }
+
     public DownloadItem getState(int id) {
+        Item item;
         synchronized (sync) {
-            Item item = queue.get(id);
-            return item == null ? null : convert(item);
+            item = queue.get(id);
         }
+        return item == null ? null : convert(item);
     }
 
     private DownloadItem convert(Item item) {
-        return new DownloadItem(item.id, item.url, item.file,
-                item.total != DownloadService.UNKNOWN && item.total >= item.received ? item.total : 0, item.received,
-                item.state, item.error);
+        long received = item.received;
+        long total = item.total;
+        DownloadItemState state = item.state;
+        return convert(item, received, total, state, item.error);
+    }
+
+    private DownloadItem convert(Item item, long received, long total, DownloadItemState state, Throwable error) {
+        DownloadItem result = new DownloadItem(item.id, item.url, item.file,
+                total != DownloadService.UNKNOWN && total >= received ? total : 0, received, state, error);
+        result.setPriority(item.priority);
+        result.setRetries(item.retries);
+        result.setMirrors(item.mirrors);
+        result.setChecksum(item.checksum);
+        return result;
     }
 
 
+    /**
+     * Progress fields are written by the download thread without lock: total before received,
+     * so a reader which reads received first gets a total not older than it.
+     * State and error are changed under the lock: error before state.
+     */
     private static class Item {
         int id;
         String url;
+        List<String> mirrors = Collections.emptyList();  // other URLs of the same file
+        Checksum checksum;  // expected checksum, null if content isn't verified
+        String host;
         File file;
-        long total;
-        long received;
+        volatile int priority;
+        volatile int retries = 0;  // count of retries after transient errors since start
+        volatile RateLimiter rateLimiter;  //null if the item speed isn't limited
+        volatile long checkpoint = 0;  // length of the file part which can be resumed after crash
+        final Set<HttpEngine.Response> responses = ConcurrentHashMap.newKeySet();  // responses of the current attempt
+        volatile boolean stalled = false;  // responses are aborted by watchdog
+        volatile long waitUntil;  // System.nanoTime() until which the download waits for speed limit or retry
+        volatile List<SegmentStats> segments = Collections.emptyList();
+        volatile DownloadItemState journaledState = DownloadItemState.NEW;  // null after remove, changed under item monitor
+        volatile long total;
+        volatile long received;
         Future<?> task;
-        Throwable error;
-        DownloadItemState state = DownloadItemState.NEW;
-        boolean remove = false;
+        volatile Throwable error;
+        volatile DownloadItemState state = DownloadItemState.NEW;
+        volatile boolean remove = false;
         CompleteListener completeListener;
+        Item leader;  // unfinished item of the same URL which this item waits for, guarded by 'sync'
+        boolean queued;  // the leader only writes the same file, so the item is started itself after it, guarded by 'sync'
+        List<Item> followers = new ArrayList<>();  // items which wait for this one, guarded by 'sync'
+
+        //    contribution to the manager totals, guarded by item monitor
+        long accountedTotal = 0;
+        long accountedReceived = 0;
+        boolean accountedUnknown = false;
+        DownloadItemState accountedState = null;
+
+        //    version of the last change, guarded by item monitor
+        long version = 0;
+        boolean forgotten = false;  // removed item whose remove is registered
+        long touchTime;  // nanos of the last registered change
+        volatile boolean touchPending = false;  // progress isn't registered yet
+    }
+
+    /**
+     * Samples progress of running items. Item is stalled if its received count isn't changed during the stall timeout
+     * or it is slower than the minimal speed during the speed window. Responses of stalled item are aborted,
+     * so its download fails with I/O error and is restarted from the loaded part, see 'DownloadTask.download'.
+     * Samples are dropped while the item waits for speed limit or retry.
+     */
+    private void checkStalls() {
+        long now = System.nanoTime();
+        long stallTimeout = TimeUnit.MILLISECONDS.toNanos(this.stallTimeout);
+        long speedWindow = TimeUnit.MILLISECONDS.toNanos(this.speedWindow);
+        long minSpeed = this.minSpeed;
+        for (Map.Entry<Item, Watch> entry : running.entrySet()) {
+            Item item = entry.getKey();
+            Watch watch = entry.getValue();
+            if (item.touchPending) {
+                synchronized (item) {
+                    if (item.touchPending) {
+                        touch(item);
+                    }
+                }
+            }
+            long received = item.received;
+            if (item.waitUntil - now > 0 || received < watch.received) {
+                watch.reset(now, received);
+                continue;
+            }
+            if (received > watch.received) {
+                watch.received = received;
+                watch.progressTime = now;
+            }
+
+            //    the first sample is the latest one which is not newer than the window
+            ArrayDeque<long[]> samples = watch.samples;
+            samples.addLast(new long[] {now, received});
+            while (samples.size() > 1) {
+                long[] first = samples.pollFirst();
+                if (now - samples.peekFirst()[0] < speedWindow) {
+                    samples.addFirst(first);
+                    break;
+                }
+            }
+            long[] first = samples.peekFirst();
+            boolean slow = minSpeed > 0 && now - first[0] >= speedWindow
+                    && (received - first[1]) * (double) TimeUnit.SECONDS.toNanos(1) / (now - first[0]) < minSpeed;
+            boolean frozen = stallTimeout > 0 && now - watch.progressTime >= stallTimeout;
+            if ((slow || frozen) && !item.responses.isEmpty()) {
+                item.stalled = true;
+                for (HttpEngine.Response response : item.responses) {
+                    response.abort();
+                }
+                watch.reset(now, received);
+            }
+        }
+    }
+
+    // progress samples of running item, they are used only by watchdog thread
+    private static class Watch {
+        final ArrayDeque<long[]> samples = new ArrayDeque<>();  // System.nanoTime() and received count
+        long progressTime;  // time of the last change of received count
+        long received;
+
+        Watch(long now, long received) {
+            reset(now, received);
+        }
+
+        void reset(long now, long received) {
+            samples.clear();
+            samples.addLast(new long[] {now, received});
+            progressTime = now;
+            this.received = received;
+        }
     }
 
     private class DownloadTask implements Runnable {
         private Item item;
+        private final AtomicBoolean claimed = new AtomicBoolean();  // slot is released either by run or by cancel before run
 
         public DownloadTask(Item item) {
             this.item = item;
         }
 
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        // release the slot and start next items, it's called once with the final state of the item
+        void finish() {
+            synchronized (sync) {
+                scheduler.finish(item.host);
+                dispatch();
+            }
+        }
+
+        // download with retries after transient errors, attempts are counted since the last loaded byte
+        private void download(DownloadService.Handler handler) throws Exception {
+            int failures = 0;
+            while (true) {
+                long length = item.file.length();
+                item.responses.clear();
+                item.stalled = false;
+                try {
+                    if (item.mirrors.isEmpty() && item.checksum == null) {
+                        service.download(item.url, item.file, handler);
+                    } else {
+                        List<String> urls = new ArrayList<>();
+                        urls.add(item.url);
+                        urls.addAll(item.mirrors);
+                        if (item.checksum == null) {
+                            service.download(urls, item.file, handler);
+                        } else {
+                            service.download(urls, item.file, item.checksum, handler);
+                        }
+                    }
+                    return;
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    RetryPolicy policy = retryPolicy;
+                    boolean stalled = item.stalled;
+                    failures = item.file.length() > length ? 1 : failures + 1;
+                    if (failures >= policy.getMaxAttempts() || !stalled && !policy.isRetryable(e)) {
+                        throw stalled ? new IOException("Download is stalled", e) : e;
+                    }
+                    item.retries++;
+                    account(item);
+                    //    stalled download is restarted at once
+                    if (!stalled) {
+                        long delay = policy.getDelay(failures);
+                        item.waitUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                        Thread.sleep(delay);
+                    }
+                }
+            }
+        }
+
+        // complete item as stopped if it isn't completed yet
+        void cancelBeforeRun() {
+            try {
+                stopBeforeRun();
+            } finally {
+                taskEnded();
+            }
+        }
+
+        private void stopBeforeRun() {
+            CompleteListener callStopped = null;
+            synchronized (sync) {
+                if (item.state == DownloadItemState.NEW) {
+                    item.error = new InterruptedException();
+                    item.state = DownloadItemState.STOPPED;
+                    account(item);
+                    release(item, DownloadItemState.STOPPED);
+                    callStopped = item.completeListener;
+                }
+                finish();
+            }
+            if (item.remove) {
+                item.file.delete();
+            }
+            if (callStopped != null) {
+                callStopped.onComplete(DownloadItemState.STOPPED);
+            }
+        }
+
         @Override
         public void run() {
+            if (!claim()) {
+                return;
+            }
+            try {
+                load();
+            } finally {
+                taskEnded();
+            }
+        }
+
+        // the task isn't counted by 'shutdown' anymore
+        private void taskEnded() {
+            synchronized (sync) {
+                if (--tasksCount == 0) {
+                    sync.notifyAll();
+                }
+            }
+        }
+
+        private void load() {
             Throwable error = null;
             boolean stop = false;
             try {
                 synchronized (sync) {
                     if (item.state != DownloadItemState.NEW) {
                         // task was canceled before run or somethind else
+                        finish();
                         return;
                     }
                     item.state = DownloadItemState.STARTED;
+                    account(item);
                 }
+                item.waitUntil = System.nanoTime();
+                running.put(item, new Watch(item.waitUntil, item.received));
 
-                service.download(item.url, item.file, item.received, (received, total) -> {
-                    synchronized (sync) {
-                        item.received = received;
+                //    file keeps only continuously loaded part after stop or I/O error, so resume from its length
+                download(new DownloadService.Handler() {
+                    @Override
+                    public void onProgress(long received, long total) throws InterruptedException {
                         item.total = total;
+                        item.received = received;
+                        account(item, true);
                         if (Thread.interrupted()) {
                             throw new InterruptedException();
                         }
                     }
+
+                    @Override
+                    public void onCheckpoint(long length) {
+                        item.checkpoint = length;
+                        DownloadJournal journal = DownloadManager.this.journal;
+                        if (journal != null) {
+                            journal.checkpoint(item.id, length, item.total);
+                            compactJournal(false);
+                        }
+                    }
+
+                    @Override
+                    public void onBlock(int size) throws InterruptedException {
+                        long wakeUp = RateLimiter.reserve(size, item.rateLimiter, hostRateLimiters.get(item.host), rateLimiter);
+                        item.waitUntil = wakeUp;
+                        RateLimiter.sleepUntil(wakeUp);
+                    }
+
+                    @Override
+                    public void onResponse(HttpEngine.Response response) {
+                        item.responses.add(response);
+                    }
+
+                    @Override
+                    public void onSegments(List<SegmentStats> segments) {
+                        item.segments = segments;
+                    }
                 });
             } catch (InterruptedException e) {
                 stop = true;
             } catch (Throwable e) {
                 error = e;
             }
+            running.remove(item);
+            item.responses.clear();
 
             boolean needRemoveFile;
             CompleteListener completeListener;
+            List<Item> followers;
             DownloadItemState state = stop ? DownloadItemState.STOPPED : error != null ? DownloadItemState.ERROR : DownloadItemState.DONE;
             synchronized (sync) {
-                needRemoveFile = item.remove || error != null;
+                //    loaded part is kept after transient error, so the item can be resumed by 'start'
+                needRemoveFile = (item.remove || error != null && !retryPolicy.isRetryable(error)) && !sharesFile(item);
                 completeListener = item.completeListener;
                 item.error = error;
                 item.state = state;
+                account(item);
+                followers = release(item, state);
+                finish();
             }
+            completeFollowers(item, error, followers);
             if (needRemoveFile) {
                 item.file.delete();
             }
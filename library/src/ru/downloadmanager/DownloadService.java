@@ -1,11 +1,33 @@
 package ru.downloadmanager;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 
 public class DownloadService {
@@ -14,11 +36,51 @@ public class DownloadService {
 
     private String userAgent = "Mozilla/5.0 (X11; Ubuntu; Linux x86_64; rv:43.0) Gecko/20100101 Firefox/43.0";
     private int redirectionLimit = 5;
+    private int segmentsCount = 1;
+    private long minSegmentSize = 1024 * 1024;
+    private int blockSize = 64 * 1024;
+    private long progressInterval = 0;  //bytes, zero to report each block
+    private long checkpointInterval = 1000;  //ms, zero disables checkpoints
+    private int connectTimeout = 30000;  //ms, zero is the engine default
+    private int readTimeout = 60000;  //ms, zero is the engine default
+    private boolean preallocate = true;
+    private int mappedWindow = 0;  //bytes, zero disables memory-mapped output
+    private volatile ValidatorStore validatorStore;  //null disables sync mode
+    private volatile DownloadCache cache;  //null if files aren't cached
+
+    private HttpEngine engine = new URLConnectionEngine() {
+        @Override
+        protected HttpURLConnection openConnection(String url) throws IOException {
+            return DownloadService.this.openConnection(url);
+        }
+    };
+
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+    private volatile BufferPool bufferPool;  //null to use a buffer of each thread
+    private volatile WritePipeline writePipeline;  //null to write in downloading threads
+
+    private final ExecutorService segmentPool = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "download-segment");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public DownloadService() {
 
     }
 
+    public DownloadService(HttpEngine engine) {
+        this.engine = engine;
+    }
+
+    public HttpEngine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(HttpEngine engine) {
+        this.engine = engine;
+    }
+
     public String getUserAgent() {
         return userAgent;
     }
@@ -35,12 +97,187 @@ public class DownloadService {
         this.redirectionLimit = redirectionLimit;
     }
 
+    public int getSegmentsCount() {
+        return segmentsCount;
+    }
+
+    /**
+     * Maximum number of concurrent range requests for one file, 1 disables segmented mode
+     */
+    public void setSegmentsCount(int segmentsCount) {
+        this.segmentsCount = segmentsCount;
+    }
+
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    public void setMinSegmentSize(long minSegmentSize) {
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Size of the buffer which is accumulated before write to the file
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    /**
+     * Whether the file is extended to its full size before loading when the size is known.
+     * Free space is checked anyway, and the file is truncated to the loaded part if the download fails.
+     */
+    public void setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+    }
+
+    public int getMappedWindow() {
+        return mappedWindow;
+    }
+
+    /**
+     * Size of the file region which is mapped to memory at once, zero disables memory-mapped output.
+     * In this mode content of preallocated files is read directly to the mapping instead of a buffer,
+     * and the window is remapped when the transfer reaches its end.
+     */
+    public void setMappedWindow(int mappedWindow) {
+        this.mappedWindow = mappedWindow;
+    }
+
+    public ValidatorStore getValidatorStore() {
+        return validatorStore;
+    }
+
+    /**
+     * Enables sync mode: validators of complete downloads are stored, and a complete file is requested again
+     * with If-None-Match and If-Modified-Since, it isn't touched if the server answers 304 Not Modified.
+     * Resumed requests are sent with If-Range, so a changed file is loaded from the start. Null disables the mode.
+     */
+    public void setValidatorStore(ValidatorStore validatorStore) {
+        this.validatorStore = validatorStore;
+    }
+
+    public DownloadCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Cache which is consulted before requests, a cached URL is filled from it without network.
+     * In sync mode the cached version is filled only if conditional request by its validators isn't modified.
+     * Complete downloads are stored to it, the cache may be shared by several services. Null disables caching.
+     */
+    public void setCache(DownloadCache cache) {
+        this.cache = cache;
+    }
+
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Minimal count of bytes between 'onProgress' calls, zero to call it after each block.
+     * Larger values reduce the calls overhead, but make stop more delayed.
+     */
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Minimal time in milliseconds between 'onCheckpoint' calls, zero disables them.
+     * Each checkpoint forces the file content to the storage.
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets pool of transfer buffers, null to keep a buffer in each thread.
+     * Transfer can get a buffer smaller than the block size from the pool, it reads smaller blocks then.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public WritePipeline getWritePipeline() {
+        return writePipeline;
+    }
+
+    /**
+     * Sets pipeline which writes files in its threads, null to write them in downloading threads.
+     * Blocks are reported to handlers after they are written, so checkpoints never include unwritten data.
+     */
+    public void setWritePipeline(WritePipeline writePipeline) {
+        this.writePipeline = writePipeline;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Maximal time in milliseconds of waiting for the next data, the download fails with I/O error after it
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
     public interface Handler {
         void onProgress(long received, long total) throws InterruptedException;
+
+        /**
+         * Called periodically with length of the continuously loaded part of the file which is forced to the storage,
+         * the download can be resumed from it after crash
+         */
+        default void onCheckpoint(long length) throws InterruptedException {
+        }
+
+        /**
+         * Called after each written block, it can sleep to limit the download speed.
+         * In segmented mode it is called concurrently by threads of segments.
+         */
+        default void onBlock(int size) throws InterruptedException {
+        }
+
+        /**
+         * Called for each opened response, including responses of redirects and segments.
+         * Handler can abort it from other thread to break a stalled transfer, the download fails with I/O error then.
+         */
+        default void onResponse(HttpEngine.Response response) {
+        }
+
+        /**
+         * Called periodically during segmented download and after its end with state of the segments
+         */
+        default void onSegments(List<SegmentStats> segments) {
+        }
     }
 
     public void download(String url, File file, Handler handler) throws IOException, DownloadException, InterruptedException {
-        download(url, file, file.exists() ? (int)file.length() : 0, handler);
+        download(url, file, file.exists() ? file.length() : 0, handler);
     }
 
     public void download(String url, File file, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
@@ -48,20 +285,216 @@ public class DownloadService {
     }
 
     public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
+        Mirrors mirrors = new Mirrors(Collections.singletonList(url));
+        Job job = newJob(url, file, null);
+        if (fromCache(job, rangeFrom, handler)) {
+            return;
+        }
+        download(mirrors, mirrors.acquire(), url, job, followRedirects, job.prepare(rangeFrom), handler);
+        if (!fillRevalidated(job)) {
+            download(mirrors, mirrors.acquire(), url, job, followRedirects, job.prepare(rangeFrom), handler);
+        }
+        toCache(job);
+    }
+
+    /**
+     * Downloads the file like 'download(url, file, handler)' and verifies its content by the checksum.
+     * Digest is computed from transfer buffers during download, the file is read again only for
+     * the part which is loaded before and for segments which are loaded ahead of the continuous part.
+     * File with other content is deleted, and DownloadException is thrown.
+     */
+    public void download(String url, File file, Checksum checksum, Handler handler) throws IOException, DownloadException, InterruptedException {
+        download(Collections.singletonList(url), file, checksum, handler);
+    }
 
-        //    prepare request
-        HttpURLConnection connection = openConnection(url);
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("User-Agent", userAgent);
-        if (rangeFrom > 0) {
-            connection.setRequestProperty("Range", "bytes=" + rangeFrom + "-");
+    /**
+     * Downloads one file from several mirrors, it is resumed from the file length.
+     * If the first available mirror supports ranges, segments are loaded from different mirrors concurrently
+     * and at least one segment is started for each mirror, otherwise the file is loaded from one mirror.
+     * Mirror which fails or has other size, ETag or Last-Modified than the first response is dropped,
+     * the rest is loaded from other mirrors.
+     */
+    public void download(List<String> urls, File file, Handler handler) throws IOException, DownloadException, InterruptedException {
+        download(urls, file, null, handler);
+    }
+
+    /**
+     * Downloads one file from several mirrors and verifies it like 'download(url, file, checksum, handler)'
+     * @param checksum expected checksum or null
+     */
+    public void download(List<String> urls, File file, Checksum checksum, Handler handler) throws IOException, DownloadException, InterruptedException {
+        FileDigest digest = checksum != null ? new FileDigest(checksum) : null;
+        Job job = newJob(urls.get(0), file, digest);
+        if (fromCache(job, file.exists() ? file.length() : 0, handler)) {
+            return;
+        }
+        Mirrors mirrors = new Mirrors(urls);
+        Exception error = null;
+        for (Mirrors.Mirror mirror = mirrors.acquire(); mirror != null; mirror = mirrors.acquire()) {
+            try {
+                download(mirrors, mirror, mirror.getUrl(), job, redirectionLimit, job.prepare(file.exists() ? file.length() : 0), handler);
+                if (!fillRevalidated(job)) {
+                    download(mirrors, mirror, mirror.getUrl(), job, redirectionLimit, job.prepare(file.exists() ? file.length() : 0), handler);
+                }
+                if (digest != null && !job.notModified) {
+                    verify(file, digest);
+                }
+                toCache(job);
+                return;
+            } catch (IOException | DownloadException e) {
+                mirrors.drop(mirror);
+                error = e;
+            }
+        }
+        if (error instanceof DownloadException) {
+            throw (DownloadException) error;
+        }
+        throw error != null ? (IOException) error : new IOException("No mirrors");
+    }
+
+    // content with other checksum can't be resumed, so it is deleted
+    private static void verify(File file, FileDigest digest) throws IOException, DownloadException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            digest.verify(channel);
+        } catch (DownloadException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Fills the rest of the file from the cache, cached content with other checksum is removed from it.
+     * In sync mode cached version is revalidated like the stored one instead, see 'fillRevalidated'
+     * @return true if the file is filled
+     */
+    private boolean fromCache(Job job, long rangeFrom, Handler handler) throws IOException, InterruptedException {
+        DownloadCache cache = this.cache;
+        if (cache == null) {
+            return false;
+        }
+        if (validatorStore != null) {
+            DownloadCache.Entry entry = cache.get(job.key);
+            //    the file itself is revalidated or resumed
+            if (entry != null && job.stored == null && rangeFrom == 0 && (entry.getEtag() != null || entry.getLastModified() != null)) {
+                job.cached = entry;
+                job.stored = new ValidatorStore.Entry(job.file.getAbsoluteFile(), entry.getLength(), entry.getEtag(), entry.getLastModified());
+            }
+            return false;
+        }
+        DownloadCache.Entry entry = cache.fill(job.key, job.file, rangeFrom);
+        if (entry == null) {
+            return false;
+        }
+        if (job.digest != null) {
+            try {
+                verify(job.file, job.digest);
+            } catch (DownloadException e) {
+                //    the loaded part can be wrong instead
+                if (rangeFrom == 0) {
+                    cache.remove(job.key);
+                }
+                return false;
+            }
+        }
+        handler.onProgress(entry.getLength(), entry.getLength());
+        return true;
+    }
+
+    /**
+     * Fills the file by cached version which is confirmed by not modified response, its validators become actual.
+     * @return false if the content is evicted meanwhile or has other checksum, so the file has to be loaded again
+     */
+    private boolean fillRevalidated(Job job) throws IOException {
+        DownloadCache.Entry cached = job.cached;
+        if (cached == null || !job.notModified) {
+            return true;
+        }
+        job.cached = null;
+        job.stored = null;
+        job.notModified = false;
+        DownloadCache cache = this.cache;
+        DownloadCache.Entry entry = cache.fill(job.key, job.file);
+        if (entry == null) {
+            return false;
+        }
+        if (!entry.getHash().equals(cached.getHash())) {
+            //    other version is cached meanwhile, it can't be resumed, and linked content must not be truncated
+            Files.deleteIfExists(job.file.toPath());
+            return false;
+        }
+        if (job.digest != null) {
+            try {
+                verify(job.file, job.digest);
+            } catch (DownloadException e) {
+                cache.remove(job.key);
+                return false;
+            }
+        }
+        job.notModified = true;
+        ValidatorStore store = validatorStore;
+        if (store != null) {
+            store.put(job.key, new ValidatorStore.Entry(job.file.getAbsoluteFile(), entry.getLength(), entry.getEtag(), entry.getLastModified()));
+        }
+        return true;
+    }
+
+    // stores the complete file to the cache, not modified file is stored only if it isn't cached yet
+    private void toCache(Job job) {
+        DownloadCache cache = this.cache;
+        if (cache == null || job.notModified && cache.get(job.key) != null) {
+            return;
+        }
+        try {
+            cache.put(job.key, job.file, job.etag, job.lastModified);
+        } catch (IOException e) {
+            //    the file is downloaded anyway
+        }
+    }
+
+    // validators of the file are used in sync mode if it isn't changed after the download, except truncation
+    private Job newJob(String key, File file, FileDigest digest) {
+        Job job = new Job(key, file, digest);
+        ValidatorStore store = validatorStore;
+        ValidatorStore.Entry stored = store != null ? store.get(key) : null;
+        if (stored != null && stored.getFile().getAbsoluteFile().equals(file.getAbsoluteFile()) && file.length() <= stored.getLength()) {
+            job.stored = stored;
+        }
+        return job;
+    }
+
+    private void download(Mirrors mirrors, Mirrors.Mirror mirror, String url, Job job, int followRedirects, long rangeFrom,
+                          Handler handler) throws IOException, DownloadException, InterruptedException {
+
+        //    send request
+        HttpEngine.Response response = openRequest(url, rangeFrom > 0 ? "bytes=" + rangeFrom + "-" : null, job, handler);
+        try {
+            load(response, mirrors, mirror, url, job, followRedirects, rangeFrom, handler);
+        } catch (Throwable e) {
+            response.abort();
+            throw e;
+        } finally {
+            response.close();
+        }
+    }
+
+    private void load(HttpEngine.Response response, Mirrors mirrors, Mirrors.Mirror mirror, String url, Job job, int followRedirects, long rangeFrom,
+                      Handler handler) throws IOException, DownloadException, InterruptedException {
+        File file = job.file;
+        FileDigest digest = job.digest;
+
+        //    the file is up to date
+        int status = response.getStatus();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && job.conditional) {
+            long length = job.stored.getLength();
+            handler.onProgress(length, length);
+            job.notModified = true;
+            return;
         }
 
         //    check ranged response
-        int status = connection.getResponseCode();
         boolean rangedResponse = rangeFrom > 0 && status == HttpURLConnection.HTTP_PARTIAL;
         if (rangedResponse) {
-            String contentRange = connection.getHeaderField("Content-Range");
+            String contentRange = response.getHeader("Content-Range");
             if (contentRange == null) {
                 throw new DownloadException("Invalid HTTP response, no 'Content-Range' header for status code " + status);
             }
@@ -76,48 +509,460 @@ public class DownloadService {
                 if (followRedirects == 0) {
                     throw new DownloadException("No more redirects are allowed");
                 }
-                String location = connection.getHeaderField("Location");
+                String location = response.getHeader("Location");
                 if (location == null) {
                     throw new DownloadException("Invalid HTTP response, no 'Location' header for status code " + status);
                 }
-                download(location, file, followRedirects - 1, rangeFrom, handler);
+                //    release connection before the next request
+                response.close();
+                //    location may be relative to the current URL
+                download(mirrors, mirror, new URL(new URL(url), location).toString(), job, followRedirects - 1, rangeFrom, handler);
                 return;
             } else {
-                throw new DownloadException("Unsuccess status code: " + status);
+                throw new DownloadException("Unsuccess status code: " + status, status);
             }
         }
 
-        //    load content
+        //    the part which is loaded from other mirror is resumed only from the same version,
+        //    the whole content of other version replaces it and has to be matched by the next mirrors
+        long contentLength = response.getContentLength();
+        long length = rangedResponse ? Long.parseLong(response.getHeader("Content-Range").replaceFirst(".*/", ""))
+                : contentLength >= 0 ? contentLength : UNKNOWN;
+        if (rangedResponse && mirrors.hasValidators()) {
+            if (!mirrors.matches(response, length)) {
+                throw new DownloadException("Other version of the file at " + url);
+            }
+        } else {
+            mirrors.setValidators(response, length);
+        }
+
+        //    stored version is overwritten, so its validators can't be used to resume
+        ValidatorStore store = validatorStore;
+        if (!rangedResponse && job.stored != null && store != null) {
+            store.remove(job.key);
+            job.stored = null;
+            job.cached = null;
+        }
+
+        //    content which is linked from the cache is written to own copy of the file
+        DownloadCache.detach(file, rangedResponse ? rangeFrom : 0);
+
+        //    load content by several connections if server supports it
         long received = rangedResponse ? rangeFrom : 0;
-        long total = received + connection.getContentLength();
+        int maxCount = Math.max(segmentsCount, mirrors.size());
+        if (maxCount > 1 && contentLength >= 2 * minSegmentSize
+                && (rangedResponse || "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges")))) {
+            int count = (int) Math.min(maxCount, contentLength / minSegmentSize);
+            mirror.setUrl(url);
+            new SegmentedDownload(this, mirrors, file, received, received + contentLength, count, digest).run(response, mirror, handler);
+            storeValidators(job, response);
+            return;
+        }
+
+        //    load content
+        long total = received + contentLength;
         handler.onProgress(received, total);
 
-        InputStream in = connection.getInputStream();
-        try (FileOutputStream out = new FileOutputStream(file, rangedResponse)) {
-            final int BLOCK_SIZE = 8192;
-            byte[] buffer = new byte[BLOCK_SIZE];
-            for (int offset = 0; ; ) {
-                int readed = in.read(buffer, offset, buffer.length - offset);
-                if (readed == -1) {
-                    out.write(buffer, 0, offset);
-                    received += offset;
-                    handler.onProgress(received, total);
+        AtomicLong loaded = new AtomicLong(-1);  // end of the written part if the file is extended beyond it
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //    ranged content is appended to the existing file
+            long offset = rangedResponse ? out.size() : 0;
+            out.truncate(offset);
+            if (contentLength > 0 && allocate(out, file, offset + contentLength)) {
+                loaded.set(offset);
+            }
+            if (digest != null) {
+                digest.seek(out, offset);
+            }
+            ReadableByteChannel in = Channels.newChannel(response.getBody());
+            long shift = received - offset;
+            long end = transfer(in, out, offset, Long.MAX_VALUE, new BlockListener() {
+                long reported = offset;
+                long checkpointTime = System.nanoTime();
+
+                @Override
+                public void onRead(long position, ByteBuffer block) {
+                    if (digest != null) {
+                        digest.update(position, block);
+                    }
+                }
+
+                @Override
+                public boolean onBlock(long position, int size) throws IOException, InterruptedException {
+                    if (loaded.get() != -1) {
+                        loaded.set(position);
+                    }
+                    handler.onBlock(size);
+                    if (position - reported >= progressInterval) {
+                        reported = position;
+                        handler.onProgress(position + shift, total);
+                    }
+                    if (isCheckpointTime(checkpointTime)) {
+                        out.force(false);
+                        handler.onCheckpoint(position);
+                        checkpointTime = System.nanoTime();
+                    }
+                    return true;
+                }
+            });
+            //    content can be shorter than the preallocated size
+            out.truncate(end);
+            loaded.set(-1);
+            handler.onProgress(end + shift, total);
+        } catch (ClosedByInterruptException e) {
+            //    channel was closed by interruption, so it is the same as the stop in handler
+            Thread.interrupted();
+            truncate(file, loaded.get());
+            throw new InterruptedException();
+        } catch (IOException | InterruptedException e) {
+            truncate(file, loaded.get());
+            throw e;
+        } catch (RuntimeException e) {
+            //    unexpected error, unlike I/O error which keeps the loaded part to resume the download
+            file.delete();
+            throw e;
+        }
+        storeValidators(job, response);
+    }
+
+    // remember validators of the complete file for the cache and the next sync
+    private void storeValidators(Job job, HttpEngine.Response response) {
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        job.etag = etag;
+        job.lastModified = lastModified;
+        ValidatorStore store = validatorStore;
+        if (store == null) {
+            return;
+        }
+        if (etag == null && lastModified == null) {
+            store.remove(job.key);
+        } else {
+            store.put(job.key, new ValidatorStore.Entry(job.file.getAbsoluteFile(), job.file.length(), etag, lastModified));
+        }
+    }
+
+    /**
+     * Checks that the rest of the file fits the free space and extends the file to the size if preallocation is on
+     * @return true if the file is extended
+     */
+    boolean allocate(FileChannel channel, File file, long size) throws IOException, DownloadException {
+        long needed = size - channel.size();
+        if (needed <= 0) {
+            return false;
+        }
+        long usable = Files.getFileStore(file.toPath()).getUsableSpace();
+        if (usable < needed) {
+            throw new DownloadException("Not enough space for " + file.getName() + ": " + needed + " bytes are needed, " + usable + " are available");
+        }
+        if (!preallocate) {
+            return false;
+        }
+        //    file isn't extended by truncate, so the last byte is written
+        channel.write(ByteBuffer.allocate(1), size - 1);
+        return true;
+    }
+
+    // keep the loaded part of the extended file, so the download can be resumed by file length
+    static void truncate(File file, long length) throws IOException {
+        if (length != -1) {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.setLength(length);
+            }
+        }
+    }
+
+    interface BlockListener {
+        /**
+         * Called after each written block
+         * @return false to stop transfer
+         */
+        boolean onBlock(long position, int size) throws IOException, InterruptedException;
+
+        /**
+         * Called with each read block before it is written, the listener must not change the buffer
+         */
+        default void onRead(long position, ByteBuffer block) throws IOException {
+        }
+    }
+
+    // bytes which transfer can read beyond the last reported position: unreported blocks of write-behind and the current one
+    int getReadAhead() {
+        WritePipeline pipeline = writePipeline;
+        return pipeline != null ? (pipeline.getDepth() + 1) * blockSize : blockSize;
+    }
+
+    // @param lastCheckpoint System.nanoTime() of the last checkpoint
+    boolean isCheckpointTime(long lastCheckpoint) {
+        return checkpointInterval > 0 && System.nanoTime() - lastCheckpoint >= TimeUnit.MILLISECONDS.toNanos(checkpointInterval);
+    }
+
+    /**
+     * Copies channel content to the file from the position until end of stream or end position.
+     * Blocks are accumulated in direct buffer and written by positional writes.
+     * @return position after the last written byte
+     */
+    long transfer(ReadableByteChannel in, FileChannel out, long position, long end, BlockListener listener) throws IOException, InterruptedException {
+        return transfer(in, out, position, () -> end, listener);
+    }
+
+    /**
+     * Copies channel content like 'transfer' with the end position which can be decreased concurrently,
+     * it is read before each block
+     */
+    long transfer(ReadableByteChannel in, FileChannel out, long position, LongSupplier endSupplier, BlockListener listener) throws IOException, InterruptedException {
+        if (mappedWindow > 0 && position < out.size()) {
+            return transferMapped(in, out, position, endSupplier, listener);
+        }
+        WritePipeline pipeline = writePipeline;
+        if (pipeline != null) {
+            return transferBehind(pipeline, in, out, position, endSupplier, listener);
+        }
+        return transferDirect(in, out, position, endSupplier, listener);
+    }
+
+    private long transferDirect(ReadableByteChannel in, FileChannel out, long position, LongSupplier endSupplier, BlockListener listener) throws IOException, InterruptedException {
+        BufferPool pool = bufferPool;
+        ByteBuffer buffer = pool != null ? pool.acquire(blockSize) : getBuffer();
+        try {
+            //    pooled buffer can be larger or smaller than the block
+            int block = Math.min(buffer.capacity(), blockSize);
+            boolean endOfStream = false;
+            long end;
+            while (!endOfStream && position < (end = endSupplier.getAsLong())) {
+                buffer.clear();
+                buffer.limit((int) Math.min(block, end - position));
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) == -1) {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                int size = buffer.remaining();
+                listener.onRead(position, buffer);
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                if (!listener.onBlock(position, size)) {
                     break;
                 }
-                offset += readed;
-                if (offset == BLOCK_SIZE) {
-                    out.write(buffer, 0, offset);
-                    received += offset;
-                    offset = 0;
-                    handler.onProgress(received, total);
+            }
+            return position;
+        } finally {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    // transfer to windows of the file mapping, content beyond the file size is written by the usual way
+    private long transferMapped(ReadableByteChannel in, FileChannel out, long position, LongSupplier endSupplier, BlockListener listener) throws IOException, InterruptedException {
+        long size = out.size();
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        try {
+            long end;
+            while (position < size && position < (end = endSupplier.getAsLong())) {
+                if (window == null || position == windowStart + window.capacity()) {
+                    unmap(window);
+                    window = null;
+                    window = out.map(FileChannel.MapMode.READ_WRITE, position, Math.min(mappedWindow, size - position));
+                    windowStart = position;
+                }
+                int offset = (int) (position - windowStart);
+                window.limit((int) Math.min(window.capacity(), Math.min(offset + (long) blockSize, end - windowStart)));
+                window.position(offset);
+                boolean endOfStream = false;
+                while (window.hasRemaining()) {
+                    if (in.read(window) == -1) {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+                int read = window.position() - offset;
+                window.limit(offset + read);
+                window.position(offset);
+                listener.onRead(position, window);
+                position += read;
+                if (!listener.onBlock(position, read) || endOfStream) {
+                    return position;
                 }
             }
-        } catch (IOException | RuntimeException e) {
-            file.delete();
+        } finally {
+            unmap(window);
+        }
+        return transferDirect(in, out, position, endSupplier, listener);
+    }
+
+    // release the mapping at once instead of GC, so the file can be truncated after failure on any platform
+    private static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            //    Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field unsafe = unsafeClass.getDeclaredField("theUnsafe");
+            unsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            //    Java 8
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException cleanerError) {
+                //    the mapping is released by GC
+            }
+        } catch (ReflectiveOperationException e) {
+            //    the mapping is released by GC
+        }
+    }
+
+    // transfer which reads next blocks while previous ones are written by the pipeline
+    private long transferBehind(WritePipeline pipeline, ReadableByteChannel in, FileChannel out, long position, LongSupplier endSupplier,
+                                BlockListener listener) throws IOException, InterruptedException {
+        WritePipeline.Transfer transfer = pipeline.open(out, bufferPool, blockSize);
+        try {
+            long written = position;
+            boolean stopped = false;
+            boolean endOfStream = false;
+            long end;
+            while (!stopped && !endOfStream && position < (end = endSupplier.getAsLong())) {
+                ByteBuffer buffer = transfer.buffer();
+                buffer.limit((int) Math.min(Math.min(buffer.capacity(), blockSize), end - position));
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) == -1) {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    int size = buffer.remaining();
+                    listener.onRead(position, buffer);
+                    transfer.write(buffer, position);
+                    position += size;
+                }
+                for (long[] block : transfer.pollWritten()) {
+                    written = block[0];
+                    stopped |= !listener.onBlock(block[0], (int) block[1]);
+                }
+            }
+            //    blocks in the queue are written after the stop too, so they are reported
+            transfer.await();
+            transfer.checkError();
+            for (long[] block : transfer.pollWritten()) {
+                written = block[0];
+                listener.onBlock(block[0], (int) block[1]);
+            }
+            if (pipeline.isSyncOnComplete()) {
+                out.force(false);
+            }
+            return written;
+        } catch (Throwable e) {
+            //    blocks which are written before the error are reported, so they are kept
+            transfer.await();
+            try {
+                for (long[] block : transfer.pollWritten()) {
+                    listener.onBlock(block[0], (int) block[1]);
+                }
+            } catch (Throwable reportError) {
+                e.addSuppressed(reportError);
+            }
             throw e;
+        } finally {
+            transfer.close();
+        }
+    }
+
+    // every thread keeps its own buffer, so it isn't allocated for each download
+    private ByteBuffer getBuffer() {
+        ByteBuffer buffer = buffers.get();
+        if (buffer == null || buffer.capacity() != blockSize) {
+            buffer = ByteBuffer.allocateDirect(blockSize);
+            buffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    HttpEngine.Response openRequest(String url, String range, Handler handler) throws IOException {
+        return openRequest(url, range, null, handler);
+    }
+
+    private HttpEngine.Response openRequest(String url, String range, Job job, Handler handler) throws IOException {
+        HttpEngine.Request request = new HttpEngine.Request(url);
+        request.setHeader("User-Agent", userAgent);
+        if (range != null) {
+            request.setHeader("Range", range);
+        }
+        if (job != null && job.conditional) {
+            if (job.stored.getEtag() != null) {
+                request.setHeader("If-None-Match", job.stored.getEtag());
+            }
+            if (job.stored.getLastModified() != null) {
+                request.setHeader("If-Modified-Since", job.stored.getLastModified());
+            }
+        }
+        if (job != null && job.ifRange != null) {
+            request.setHeader("If-Range", job.ifRange);
+        }
+        request.setConnectTimeout(connectTimeout);
+        request.setReadTimeout(readTimeout);
+        HttpEngine.Response response = engine.open(request);
+        handler.onResponse(response);
+        return response;
+    }
+
+    // state of one download call which is kept over redirects and mirrors
+    private static class Job {
+        final String key;  // URL of validators in sync mode
+        final File file;
+        final FileDigest digest;  //null if content isn't verified
+        ValidatorStore.Entry stored;  // validators of the file in sync mode, null if there are no actual ones
+        DownloadCache.Entry cached;  // cached version which is revalidated instead of the file, see 'stored'
+        boolean conditional = false;  // complete file is requested if it's modified
+        String ifRange;  // validator for resume of the stored version, null to resume without it
+        volatile boolean notModified = false;
+        String etag;  // validators of the loaded content
+        String lastModified;
+
+        Job(String key, File file, FileDigest digest) {
+            this.key = key;
+            this.file = file;
+            this.digest = digest;
         }
+
+        /**
+         * @return start of the request, complete file with validators is requested from the start by conditional request
+         */
+        long prepare(long rangeFrom) {
+            if (cached != null) {
+                conditional = true;
+                ifRange = null;
+                return 0;
+            }
+            conditional = stored != null && file.exists() && file.length() == stored.getLength()
+                    && (rangeFrom == 0 || rangeFrom == stored.getLength());
+            ifRange = null;
+            if (stored != null && rangeFrom > 0 && rangeFrom < stored.getLength()) {
+                //    weak ETag can't be used for ranges
+                String etag = stored.getEtag();
+                ifRange = etag != null && !etag.startsWith("W/") ? etag : stored.getLastModified();
+            }
+            return conditional ? 0 : rangeFrom;
+        }
+    }
+
+    ExecutorService getSegmentPool() {
+        return segmentPool;
     }
 
+    /**
+     * Creates connection for the default engine
+     */
     protected HttpURLConnection openConnection(String url) throws IOException {
         return (HttpURLConnection) new URL(url).openConnection();
     }
@@ -131,7 +976,38 @@ public class DownloadService {
         }
     }
 
+    /**
+     * Creates files like 'createFileForURL' for the URLs in order. Names of the directory are listed once,
+     * and numbers of equal names are continued in memory, so each file costs one create call
+     */
+    public static List<File> createFilesForURLs(List<String> urls, File downloadDir) throws IOException {
+        String[] names = downloadDir.list();
+        Set<String> taken = new HashSet<>(names != null ? Arrays.asList(names) : Collections.<String>emptyList());
+        Map<String, String> last = new HashMap<>();  // the last created name for each name of URL
+        List<File> files = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            String fileName = getFileNameForURL(url);
+            String name = last.containsKey(fileName) ? incFileName(last.get(fileName)) : fileName;
+            while (taken.contains(name)) {
+                name = incFileName(name);
+            }
+            File file = new File(downloadDir, name);
+            if (!file.createNewFile()) {
+                //    created by other process after the listing
+                file = createFileForURL(url, downloadDir);
+            }
+            taken.add(file.getName());
+            last.put(fileName, file.getName());
+            files.add(file);
+        }
+        return files;
+    }
+
     public static File getFileForURL(String url, File downloadDir) {
+        return new File(incFileNameWhileExists(new File(downloadDir, getFileNameForURL(url)).getPath()));
+    }
+
+    private static String getFileNameForURL(String url) {
         if (url.startsWith("http://")) {
             url = url.substring("http://".length());
         } else if (url.startsWith("https://")) {
@@ -145,9 +1021,7 @@ public class DownloadService {
         if (i != -1 && i != url.length() - 1) {
             url = url.substring(i+1);
         }
-        String fileName = url.replaceAll("[^a-zA-Z0-9\\.]+$", "").replaceAll("[^a-zA-Z0-9\\.]", "_");
-        File file = new File(incFileNameWhileExists(new File(downloadDir, fileName).getPath()));
-        return file;
+        return url.replaceAll("[^a-zA-Z0-9\\.]+$", "").replaceAll("[^a-zA-Z0-9\\.]", "_");
     }
 
     // Add (2) to file name before extension, or inrease the this number if it exists
@@ -0,0 +1,45 @@
+package ru.downloadmanager;
+
+
+/**
+ * Constant snapshot of download manager totals without items
+ */
+public class DownloadSummary {
+
+    private final long total;  //zero if unknown
+    private final long received;
+    private final int[] counts;  // count of items by state ordinal
+
+    public DownloadSummary(long total, long received, int[] counts) {
+        this.total = total;
+        this.received = received;
+        this.counts = counts;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public int getItemsCount() {
+        int count = 0;
+        for (int stateCount : counts) {
+            count += stateCount;
+        }
+        return count;
+    }
+
+    public int getCount(DownloadItemState state) {
+        return counts[state.ordinal()];
+    }
+
+    /**
+     * @return count of new and started items
+     */
+    public int getActiveCount() {
+        return getCount(DownloadItemState.NEW) + getCount(DownloadItemState.STARTED);
+    }
+}
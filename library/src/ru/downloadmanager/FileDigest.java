@@ -0,0 +1,89 @@
+package ru.downloadmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+
+/**
+ * Digest of file content which is computed during download in order of positions.
+ * Blocks at the digested position are taken from transfer buffers, so a sequential download isn't read again.
+ * Digests can't be combined from parts, so content which is loaded ahead of the digested position,
+ * like other segments, is read from the file when the continuous part reaches it, mostly from OS cache.
+ * Thread-safe
+ */
+class FileDigest {
+
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final Checksum expected;
+    private final MessageDigest digest;
+    private long position = 0;  // content before it is digested
+    private ByteBuffer readBuffer;
+
+    FileDigest(Checksum expected) {
+        this.expected = expected;
+        digest = expected.createDigest();
+    }
+
+    /**
+     * Digests the block if it covers the digested position, the buffer isn't changed
+     */
+    synchronized void update(long position, ByteBuffer block) {
+        long end = position + block.remaining();
+        if (position <= this.position && this.position < end) {
+            ByteBuffer data = block.duplicate();
+            data.position(data.position() + (int) (this.position - position));
+            digest.update(data);
+            this.position = end;
+        }
+    }
+
+    /**
+     * Digests written content of the file from the digested position to the end
+     */
+    synchronized void catchUp(FileChannel channel, long end) throws IOException {
+        if (position >= end) {
+            return;
+        }
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocateDirect(READ_SIZE);
+        }
+        while (position < end) {
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(READ_SIZE, end - position));
+            int count = channel.read(readBuffer, position);
+            if (count == -1) {
+                throw new IOException("File is shorter than the digested content");
+            }
+            readBuffer.flip();
+            digest.update(readBuffer);
+            position += count;
+        }
+    }
+
+    /**
+     * Prepares digest for loading from the offset: content before it is digested from the file,
+     * and digest is restarted if the file is truncated before the digested position
+     */
+    synchronized void seek(FileChannel channel, long offset) throws IOException {
+        if (position > offset) {
+            digest.reset();
+            position = 0;
+        }
+        catchUp(channel, offset);
+    }
+
+    /**
+     * Digests the rest of the file and compares the result with the expected checksum
+     */
+    synchronized void verify(FileChannel channel) throws IOException, DownloadException {
+        catchUp(channel, channel.size());
+        byte[] actual = digest.digest();
+        if (!expected.matches(actual)) {
+            throw new DownloadException(expected.getAlgorithm() + " checksum mismatch: expected " + expected.getHex()
+                    + ", actual " + Checksum.toHex(actual));
+        }
+    }
+}
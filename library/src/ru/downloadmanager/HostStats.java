@@ -0,0 +1,36 @@
+package ru.downloadmanager;
+
+
+/**
+ * Constant snapshot of scheduling state of one host
+ */
+public class HostStats {
+
+    private final String host;
+    private final int pending;  // count of items waiting for a slot
+    private final int active;
+    private final int limit;  //zero is unlimited
+
+    public HostStats(String host, int pending, int active, int limit) {
+        this.host = host;
+        this.pending = pending;
+        this.active = active;
+        this.limit = limit;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPending() {
+        return pending;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,101 @@
+package ru.downloadmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Transport which executes HTTP requests for DownloadService.
+ * Implementations must be thread-safe.
+ */
+public interface HttpEngine {
+
+    /**
+     * Sends request and returns response with received status and headers
+     */
+    Response open(Request request) throws IOException;
+
+
+    class Request {
+        private final String url;
+        private String method = "GET";
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private int connectTimeout = 0;  //ms, zero is the engine default
+        private int readTimeout = 0;  //ms, zero is the engine default
+
+        public Request(String url) {
+            this.url = url;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public void setMethod(String method) {
+            this.method = method;
+        }
+
+        public Map<String, String> getHeaders() {
+            return Collections.unmodifiableMap(headers);
+        }
+
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+
+        /**
+         * Maximal time in milliseconds of waiting for data from the server
+         */
+        public void setReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+    }
+
+    interface Response {
+
+        int getStatus();
+
+        /**
+         * @return header value or null if there is no such header
+         */
+        String getHeader(String name);
+
+        /**
+         * @return body length or DownloadService.UNKNOWN
+         */
+        long getContentLength();
+
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases response, connection can be reused if it is supported by engine.
+         * Repeated calls are ignored.
+         */
+        void close();
+
+        /**
+         * Immediately breaks connection, can be called from other thread to stop reading.
+         * It is ignored after 'close', so the released connection isn't broken.
+         */
+        void abort();
+    }
+}
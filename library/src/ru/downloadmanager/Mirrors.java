@@ -0,0 +1,129 @@
+package ru.downloadmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * URLs of one file for segmented download.
+ * Each request takes the mirror with the best measured speed per connection divided by count of its connections,
+ * so slower mirrors get less segments, and mirrors without measures are tried first.
+ * Mirror which fails is dropped. Responses of all mirrors must have length and validators of the first response.
+ * Thread-safe
+ */
+class Mirrors {
+
+    private static final double SPEED_WEIGHT = 0.3;  // weight of the last measure in the average speed
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+    private boolean recorded = false;
+    private long length;
+    private String etag;
+    private String lastModified;
+
+    Mirrors(List<String> urls) {
+        for (String url : urls) {
+            mirrors.add(new Mirror(url));
+        }
+    }
+
+    /**
+     * @return mirror for a new request or null if all mirrors are dropped
+     */
+    synchronized Mirror acquire() {
+        Mirror best = null;
+        double bestScore = -1;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.dropped) {
+                double score = (mirror.measured ? mirror.speed : Double.MAX_VALUE) / (mirror.active + 1);
+                if (score > bestScore) {
+                    best = mirror;
+                    bestScore = score;
+                }
+            }
+        }
+        if (best != null) {
+            best.active++;
+        }
+        return best;
+    }
+
+    /**
+     * Ends request to the mirror
+     * @param bytes count of loaded bytes
+     * @param time nanoseconds of loading
+     */
+    synchronized void release(Mirror mirror, long bytes, long time) {
+        mirror.active--;
+        if (time > 0) {
+            double speed = bytes * 1e9 / time;
+            mirror.speed = mirror.measured ? (1 - SPEED_WEIGHT) * mirror.speed + SPEED_WEIGHT * speed : speed;
+            mirror.measured = true;
+        }
+    }
+
+    /**
+     * Ends failed request, the mirror isn't used anymore
+     */
+    synchronized void drop(Mirror mirror) {
+        mirror.active--;
+        mirror.dropped = true;
+    }
+
+    int size() {
+        return mirrors.size();
+    }
+
+    /**
+     * Remembers length and validators of the response which others have to match
+     * @param length total length of the file, UNKNOWN length doesn't match any other
+     */
+    synchronized void setValidators(HttpEngine.Response response, long length) {
+        recorded = true;
+        this.length = length;
+        etag = response.getHeader("ETag");
+        lastModified = response.getHeader("Last-Modified");
+    }
+
+    /**
+     * @return whether validators of the first response are remembered
+     */
+    synchronized boolean hasValidators() {
+        return recorded;
+    }
+
+    /**
+     * @return false if the response has other length or version of the file, validators which are absent aren't compared
+     */
+    synchronized boolean matches(HttpEngine.Response response, long length) {
+        if (length == DownloadService.UNKNOWN || this.length != length) {
+            return false;
+        }
+        String responseEtag = response.getHeader("ETag");
+        String responseLastModified = response.getHeader("Last-Modified");
+        return (etag == null || responseEtag == null || etag.equals(responseEtag))
+                && (lastModified == null || responseLastModified == null || lastModified.equals(responseLastModified));
+    }
+
+
+    static class Mirror {
+        private volatile String url;
+        private double speed = 0;  //bytes per second of one connection, guarded by mirrors
+        private boolean measured = false;
+        private int active = 0;  // count of requests
+        private boolean dropped = false;
+
+        Mirror(String url) {
+            this.url = url;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        // url after redirects
+        void setUrl(String url) {
+            this.url = url;
+        }
+    }
+}
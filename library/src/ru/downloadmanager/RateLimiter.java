@@ -0,0 +1,90 @@
+package ru.downloadmanager;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Token bucket which limits rate of bytes.
+ * Caller reserves tokens for its block and sleeps until the bucket pays them off, so concurrent callers
+ * are served in order of reservation, and the rate which isn't used by one caller is available to others.
+ * Unused tokens are accumulated up to one second of the rate.
+ * Thread-safe
+ */
+public class RateLimiter {
+
+    private static final long BURST_TIME = TimeUnit.SECONDS.toNanos(1);
+
+    private long rate;  //bytes per second, zero is unlimited
+    private long free = Long.MIN_VALUE / 2;  //nanos, time when all reserved tokens are paid off
+
+    public RateLimiter() {
+
+    }
+
+    public RateLimiter(long rate) {
+        this.rate = rate;
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Changes rate, tokens which are already reserved are paid off at the new rate
+     */
+    public synchronized void setRate(long rate) {
+        long now = System.nanoTime();
+        if (this.rate != 0 && rate != 0 && free > now) {
+            free = now + (long) ((free - now) * ((double) this.rate / rate));
+        } else if (rate == 0) {
+            free = Long.MIN_VALUE / 2;
+        }
+        this.rate = rate;
+    }
+
+    /**
+     * Reserves tokens without waiting
+     * @return time by System.nanoTime() until which the caller has to wait
+     */
+    public synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        if (rate == 0) {
+            return now;
+        }
+        free = Math.max(free, now - BURST_TIME) + (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / rate);
+        return free;
+    }
+
+    public void acquire(long bytes) throws InterruptedException {
+        sleepUntil(reserve(bytes));
+    }
+
+    /**
+     * Takes tokens from all limiters, null limiters are skipped.
+     * It waits for the slowest limiter, not for the sum of waits.
+     */
+    public static void acquire(long bytes, RateLimiter... limiters) throws InterruptedException {
+        sleepUntil(reserve(bytes, limiters));
+    }
+
+    /**
+     * Reserves tokens of all limiters without waiting, null limiters are skipped
+     * @return time by System.nanoTime() until which the caller has to wait
+     */
+    public static long reserve(long bytes, RateLimiter... limiters) {
+        long wakeUp = System.nanoTime();
+        for (RateLimiter limiter : limiters) {
+            if (limiter != null) {
+                wakeUp = Math.max(wakeUp, limiter.reserve(bytes));
+            }
+        }
+        return wakeUp;
+    }
+
+    static void sleepUntil(long wakeUp) throws InterruptedException {
+        long wait = wakeUp - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
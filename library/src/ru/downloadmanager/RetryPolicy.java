@@ -0,0 +1,109 @@
+package ru.downloadmanager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Which errors are transient and how long to wait before the next attempt.
+ * Delay grows exponentially from the initial one up to the maximal one, jitter takes off a random part of it,
+ * so downloads which failed together don't retry together.
+ * Error is retryable if it is an instance of retryable exception classes
+ * or DownloadException with retryable status code.
+ * Thread-safe, it is immutable.
+ */
+public class RetryPolicy {
+
+    /**
+     * Policy without retries
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 1, 0,
+            Collections.<Integer>emptySet(), Collections.<Class<? extends Throwable>>emptyList());
+
+    private static final Set<Integer> DEFAULT_STATUS_CODES = new HashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504));
+
+    private final int maxAttempts;
+    private final long initialDelay;  //ms
+    private final long maxDelay;  //ms
+    private final double multiplier;
+    private final double jitter;  // part of delay which is random, from 0 to 1
+    private final Set<Integer> statusCodes;
+    private final List<Class<? extends Throwable>> exceptions;
+
+    /**
+     * Default policy: 5 attempts, delays from 1 to 60 seconds with half jitter,
+     * retryable are I/O errors and status codes 408, 429, 500, 502, 503, 504
+     */
+    public RetryPolicy() {
+        this(5, 1000, 60000, 2, 0.5, DEFAULT_STATUS_CODES, Collections.<Class<? extends Throwable>>singletonList(IOException.class));
+    }
+
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, double multiplier, double jitter,
+                       Set<Integer> statusCodes, List<Class<? extends Throwable>> exceptions) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.statusCodes = Collections.unmodifiableSet(new HashSet<>(statusCodes));
+        this.exceptions = Collections.unmodifiableList(new ArrayList<>(exceptions));
+    }
+
+    /**
+     * Count of consecutive attempts which don't load anything, 1 disables retries
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public Set<Integer> getStatusCodes() {
+        return statusCodes;
+    }
+
+    public List<Class<? extends Throwable>> getExceptions() {
+        return exceptions;
+    }
+
+    public boolean isRetryable(Throwable error) {
+        if (error instanceof DownloadException) {
+            return statusCodes.contains(((DownloadException) error).getStatusCode());
+        }
+        for (Class<? extends Throwable> exception : exceptions) {
+            if (exception.isInstance(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param failures count of consecutive failed attempts, from 1
+     * @return delay in milliseconds before the next attempt
+     */
+    public long getDelay(int failures) {
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, failures - 1));
+        return (long) (delay * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+}
@@ -0,0 +1,245 @@
+package ru.downloadmanager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/**
+ * Pending tasks grouped by host and ordered by priority.
+ * Waiting task gains one level of priority per aging interval, so low priority tasks aren't starved.
+ * Next task is the first task of the host with the highest level, hosts with equal levels are taken in round-robin order,
+ * so a long queue of one host doesn't delay other hosts. Level of host is counted from the time it was served last.
+ * Count of active tasks is limited globally and per host.
+ * Not thread-safe, it is guarded by the manager lock.
+ */
+class Scheduler<T> {
+
+    private int maxActive;
+    private int hostLimit = 0;  // default limit of active tasks per host, zero is unlimited
+    private final Map<String, Integer> hostLimits = new HashMap<>();
+    private long agingInterval = 10000;  //ms, zero disables aging
+
+    private final Map<String, Host<T>> hosts = new HashMap<>();  // hosts with pending or active tasks
+    private final ArrayDeque<Host<T>> fresh = new ArrayDeque<>();  // hosts with pending tasks which aren't served yet, in order of adding
+    private final ArrayDeque<Host<T>> ring = new ArrayDeque<>();  // served hosts with pending tasks in round-robin order
+    private final Map<T, Entry<T>> entries = new HashMap<>();  // pending tasks
+    private int active = 0;
+    private long counter = 0;
+
+    Scheduler(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    int getMaxActive() {
+        return maxActive;
+    }
+
+    void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    int getHostLimit() {
+        return hostLimit;
+    }
+
+    void setHostLimit(int hostLimit) {
+        this.hostLimit = hostLimit;
+    }
+
+    int getHostLimit(String host) {
+        Integer limit = hostLimits.get(host);
+        return limit != null ? limit : hostLimit;
+    }
+
+    // negative limit restores the default one
+    void setHostLimit(String host, int limit) {
+        if (limit < 0) {
+            hostLimits.remove(host);
+        } else {
+            hostLimits.put(host, limit);
+        }
+    }
+
+    long getAgingInterval() {
+        return agingInterval;
+    }
+
+    void setAgingInterval(long agingInterval) {
+        this.agingInterval = agingInterval;
+        //    order keys depend on the interval
+        for (Host<T> h : hosts.values()) {
+            List<Entry<T>> pending = new ArrayList<>(h.pending);
+            h.pending.clear();
+            for (Entry<T> entry : pending) {
+                entry.key = key(entry);
+                h.pending.add(entry);
+            }
+        }
+    }
+
+    int getActiveCount() {
+        return active;
+    }
+
+    void add(String host, T task, int priority) {
+        Host<T> h = hosts.computeIfAbsent(host, Host::new);
+        Entry<T> entry = new Entry<>(task, h, priority, now(), counter++);
+        entry.key = key(entry);
+        entries.put(task, entry);
+        h.pending.add(entry);
+        if (!h.inRing) {
+            //    new host goes before served hosts, and after other new hosts which are added by the same batch
+            h.inRing = true;
+            fresh.addLast(h);
+        }
+    }
+
+    /**
+     * Changes priority of pending task, it keeps the time of adding
+     * @return false if the task isn't pending
+     */
+    boolean setPriority(T task, int priority) {
+        Entry<T> entry = entries.get(task);
+        if (entry == null) {
+            return false;
+        }
+        entry.host.pending.remove(entry);
+        entry.priority = priority;
+        entry.key = key(entry);
+        entry.host.pending.add(entry);
+        return true;
+    }
+
+    /**
+     * @return false if the task isn't pending
+     */
+    boolean remove(T task) {
+        Entry<T> entry = entries.remove(task);
+        return entry != null && entry.host.pending.remove(entry);  // empty host is dropped from the ring by 'poll'
+    }
+
+    /**
+     * Takes next task which can be started, it becomes active until 'finish'
+     * @return null if there is no such task
+     */
+    T poll() {
+        if (active >= maxActive) {
+            return null;
+        }
+        long now = now();
+        Host<T> best = null;
+        long bestLevel = Long.MIN_VALUE;
+        for (ArrayDeque<Host<T>> queue : Arrays.asList(fresh, ring)) {
+            for (Iterator<Host<T>> i = queue.iterator(); i.hasNext(); ) {
+                Host<T> h = i.next();
+                if (h.pending.isEmpty()) {
+                    i.remove();
+                    h.inRing = false;
+                    release(h);
+                    continue;
+                }
+                int limit = getHostLimit(h.name);
+                if (limit != 0 && h.active >= limit) {
+                    continue;
+                }
+                long level = level(h, now);
+                if (best == null || level > bestLevel) {
+                    best = h;
+                    bestLevel = level;
+                }
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        if (!fresh.remove(best)) {
+            ring.remove(best);
+        }
+        ring.addLast(best);
+        best.active++;
+        best.served = now;
+        active++;
+        Entry<T> entry = best.pending.pollFirst();
+        entries.remove(entry.task);
+        return entry.task;
+    }
+
+    void finish(String host) {
+        Host<T> h = hosts.get(host);
+        h.active--;
+        active--;
+        release(h);
+    }
+
+    private void release(Host<T> h) {
+        if (h.active == 0 && !h.inRing) {
+            hosts.remove(h.name);
+        }
+    }
+
+    // level of the first task of the host, it ages since the task is added or the host is served
+    private long level(Host<T> h, long now) {
+        Entry<T> first = h.pending.first();
+        if (agingInterval == 0) {
+            return first.priority;
+        }
+        return first.priority + (now - Math.max(first.added, h.served)) / agingInterval;
+    }
+
+    // order of tasks of one host by 'priority + age / agingInterval', it doesn't change with time
+    private double key(Entry<T> entry) {
+        return agingInterval == 0 ? entry.priority : entry.priority * (double) agingInterval - entry.added;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    HostStats[] getHostStats() {
+        List<HostStats> stats = new ArrayList<>();
+        for (Host<T> h : hosts.values()) {
+            if (h.active > 0 || !h.pending.isEmpty()) {
+                stats.add(new HostStats(h.name, h.pending.size(), h.active, getHostLimit(h.name)));
+            }
+        }
+        return stats.toArray(new HostStats[stats.size()]);
+    }
+
+
+    private static class Entry<T> {
+        final T task;
+        final Host<T> host;
+        int priority;
+        final long added;  //ms
+        final long order;  // FIFO order of equal keys
+        double key;
+
+        Entry(T task, Host<T> host, int priority, long added, long order) {
+            this.task = task;
+            this.host = host;
+            this.priority = priority;
+            this.added = added;
+            this.order = order;
+        }
+    }
+
+    private static class Host<T> {
+        final String name;
+        final TreeSet<Entry<T>> pending = new TreeSet<>(
+                Comparator.<Entry<T>>comparingDouble(entry -> -entry.key).thenComparingLong(entry -> entry.order));
+        int active = 0;
+        long served = Long.MIN_VALUE / 2;  //ms, time of the last start
+        boolean inRing = false;
+
+        Host(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ru.downloadmanager;
+
+
+/**
+ * Constant snapshot of one segment of segmented download
+ */
+public class SegmentStats {
+
+    private final String url;  // mirror of the last request for the segment
+    private final long start;
+    private final long end;  // exclusive, it is decreased when other segment steals a part of the range
+    private final long received;
+    private final long speed;  //bytes per second
+    private final int steals;  // count of parts which are taken by other segments
+    private final boolean stolen;  // segment is a part which is taken from other segment
+
+    public SegmentStats(String url, long start, long end, long received, long speed, int steals, boolean stolen) {
+        this.url = url;
+        this.start = start;
+        this.end = end;
+        this.received = received;
+        this.speed = speed;
+        this.steals = steals;
+        this.stolen = stolen;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getSpeed() {
+        return speed;
+    }
+
+    public int getSteals() {
+        return steals;
+    }
+
+    public boolean isStolen() {
+        return stolen;
+    }
+}
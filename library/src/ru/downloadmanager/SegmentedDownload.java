@@ -0,0 +1,392 @@
+package ru.downloadmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Downloading of one file by several concurrent range requests.
+ * The first segment is read by the calling thread from the already opened response,
+ * other segments are loaded in the service segment pool and written at their offsets.
+ * Thread which has finished its segment steals the second half of the largest remaining range,
+ * so the tail of the file is loaded by several connections instead of the slowest one.
+ * Each range request takes a mirror, if the mirror fails, it is dropped and the rest of the segment
+ * is requested from other mirror. Download fails when all mirrors are dropped.
+ */
+class SegmentedDownload {
+
+    private static final long PROGRESS_INTERVAL = 200;  //ms, progress reports while waiting for other segments
+
+    private final DownloadService service;
+    private final Mirrors mirrors;
+    private final FileDigest digest;  //null if content isn't verified
+    private final File file;
+    private final long from;  // the file is already loaded before it
+    private final long length;
+    private final List<Segment> segments = new ArrayList<>();  // ordered by start, they cover the rest of the file, guarded by itself
+    private final AtomicLong received;
+    private final List<HttpEngine.Response> responses = new CopyOnWriteArrayList<>();
+    private volatile boolean aborted = false;
+    private long checkpointTime = System.nanoTime();  // it's used by the calling thread only
+
+    SegmentedDownload(DownloadService service, Mirrors mirrors, File file, long from, long length, int count, FileDigest digest) {
+        this.service = service;
+        this.digest = digest;
+        this.mirrors = mirrors;
+        this.file = file;
+        this.from = from;
+        this.length = length;
+        received = new AtomicLong(from);
+        for (int i = 0; i < count; i++) {
+            segments.add(new Segment(from + (length - from) * i / count, from + (length - from) * (i + 1) / count, false));
+        }
+    }
+
+    /**
+     * @param response response of the mirror for content from the start position, it is used for the first segment
+     */
+    void run(HttpEngine.Response response, Mirrors.Mirror mirror, DownloadService.Handler handler) throws IOException, DownloadException, InterruptedException {
+        handler.onProgress(from, length);
+
+        //    lack of space keeps the loaded part, unlike other errors without status code
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.truncate(from);
+            service.allocate(channel, file, length);
+            if (digest != null) {
+                digest.seek(channel, from);
+            }
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        Segment[] initial = segments.toArray(new Segment[0]);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            try {
+                for (int i = 1; i < initial.length; i++) {
+                    Segment segment = initial[i];
+                    futures.add(service.getSegmentPool().submit(() -> {
+                        work(segment, channel, handler);
+                        return null;
+                    }));
+                }
+                try {
+                    load(initial[0], mirror, response, channel, handler, true);
+                } catch (IOException | DownloadException e) {
+                    mirrors.drop(mirror);
+                    if (aborted || e instanceof ClosedByInterruptException) {
+                        throw e;
+                    }
+                    response.abort();
+                    loadSegment(initial[0], channel, handler, true);
+                } finally {
+                    //    the rest of the content is loaded by other segments
+                    response.abort();
+                }
+                for (Segment segment = steal(); segment != null; segment = steal()) {
+                    loadSegment(segment, channel, handler, true);
+                }
+                await(futures, channel, handler);
+            } catch (Throwable e) {
+                abort(futures);
+                throw e;
+            } finally {
+                handler.onSegments(getStats());
+            }
+        } catch (ClosedByInterruptException e) {
+            Thread.interrupted();
+            truncate();
+            throw new InterruptedException();
+        } catch (InterruptedException | IOException e) {
+            truncate();
+            throw e;
+        } catch (DownloadException e) {
+            //    status code error of a segment doesn't break loaded data
+            if (e.getStatusCode() != DownloadService.UNKNOWN) {
+                truncate();
+            } else {
+                file.delete();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    // load the segment, then parts of other segments while there is something to steal
+    private void work(Segment segment, FileChannel channel, DownloadService.Handler handler) throws IOException, DownloadException, InterruptedException {
+        for (; segment != null; segment = steal()) {
+            loadSegment(segment, channel, handler, false);
+        }
+    }
+
+    /**
+     * Splits the largest remaining range, its second half becomes a new segment.
+     * Owner of the range reads its end before each block and the half isn't smaller than blocks
+     * which the owner can read beyond its reported position, so they don't cross the split point.
+     * @return new segment or null if there is nothing worth to steal
+     */
+    private Segment steal() {
+        long minPart = Math.max(service.getMinSegmentSize(), service.getReadAhead());
+        synchronized (segments) {
+            if (aborted) {
+                return null;
+            }
+            int victim = -1;
+            long largest = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                long remaining = segment.end - segment.position;
+                if (remaining > largest) {
+                    victim = i;
+                    largest = remaining;
+                }
+            }
+            if (largest < 2 * minPart) {
+                return null;
+            }
+            Segment segment = segments.get(victim);
+            long middle = segment.position + largest / 2;
+            Segment part = new Segment(middle, segment.end, true);
+            segment.end = middle;
+            segment.steals++;
+            segments.add(victim + 1, part);
+            return part;
+        }
+    }
+
+    // load the rest of the segment, mirror which fails is dropped and the rest is requested from other one
+    private void loadSegment(Segment segment, FileChannel channel, DownloadService.Handler handler, boolean reporter) throws IOException, DownloadException, InterruptedException {
+        try {
+            Exception error = null;
+            for (Mirrors.Mirror mirror = mirrors.acquire(); mirror != null; mirror = mirrors.acquire()) {
+                try {
+                    loadSegment(segment, mirror, channel, handler, reporter);
+                    return;
+                } catch (IOException | DownloadException e) {
+                    mirrors.drop(mirror);
+                    if (aborted || e instanceof ClosedByInterruptException) {
+                        throw e;
+                    }
+                    error = e;
+                }
+            }
+            if (error instanceof DownloadException) {
+                throw (DownloadException) error;
+            }
+            throw error != null ? (IOException) error : new IOException("No available mirrors");
+        } catch (Throwable e) {
+            aborted = true;
+            throw e;
+        }
+    }
+
+    private void loadSegment(Segment segment, Mirrors.Mirror mirror, FileChannel channel, DownloadService.Handler handler, boolean reporter) throws IOException, DownloadException, InterruptedException {
+        long from = segment.position;
+        long to = segment.end - 1;
+        HttpEngine.Response response = service.openRequest(mirror.getUrl(), "bytes=" + from + "-" + to, handler);
+        responses.add(response);  // failed segments are broken in 'abort'
+        try {
+            if (aborted) {
+                response.abort();
+                return;
+            }
+            int status = response.getStatus();
+            if (status != HttpURLConnection.HTTP_PARTIAL) {
+                throw new DownloadException("Unsuccess status code for segment request: " + status, status);
+            }
+            //    total length and validators make sure that mirror has the same file
+            String contentRange = response.getHeader("Content-Range");
+            if (!("bytes " + from + "-" + to + "/" + length).equals(contentRange)) {
+                throw new DownloadException("Invalid HTTP response, wrong 'Content-Range' header value for segment");
+            }
+            if (!mirrors.matches(response, length)) {
+                throw new DownloadException("Other version of the file at " + mirror.getUrl());
+            }
+            load(segment, mirror, response, channel, handler, reporter);
+        } catch (Throwable e) {
+            response.abort();
+            throw e;
+        }
+        if (segment.steals > 0) {
+            //    stolen rest of the range isn't read, draining it would be longer than new connection
+            response.abort();
+        } else if (!aborted) {
+            response.close();
+        }
+    }
+
+    // progress is reported by the calling thread, the mirror is released after the segment is loaded
+    private void load(Segment segment, Mirrors.Mirror mirror, HttpEngine.Response response, FileChannel channel, DownloadService.Handler handler, boolean reporter) throws IOException, DownloadException, InterruptedException {
+        long from = segment.position;
+        long start = System.nanoTime();
+        segment.url = mirror.getUrl();
+        long position = service.transfer(Channels.newChannel(response.getBody()), channel, from, () -> segment.end, new DownloadService.BlockListener() {
+            long reported = 0;
+
+            @Override
+            public void onRead(long position, ByteBuffer block) {
+                if (digest != null) {
+                    digest.update(position, block);
+                }
+            }
+
+            @Override
+            public boolean onBlock(long position, int size) throws IOException, InterruptedException {
+                segment.position = position;
+                long total = received.addAndGet(size);
+                handler.onBlock(size);
+                if (reporter) {
+                    if (total - reported >= service.getProgressInterval()) {
+                        reported = total;
+                        handler.onProgress(total, length);
+                    }
+                    digestCompleted(channel);
+                    checkpoint(channel, handler);
+                }
+                return !aborted;
+            }
+        });
+        if (position < segment.end && !aborted) {
+            throw new DownloadException("Unexpected end of content at position " + position);
+        }
+        mirrors.release(mirror, position - from, System.nanoTime() - start);
+        segment.finished = System.nanoTime();
+    }
+
+    private void await(List<Future<?>> futures, FileChannel channel, DownloadService.Handler handler) throws IOException, DownloadException, InterruptedException {
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    handler.onProgress(received.get(), length);
+                    handler.onSegments(getStats());
+                    digestCompleted(channel);
+                    checkpoint(channel, handler);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof DownloadException) {
+                        throw (DownloadException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+        handler.onProgress(received.get(), length);
+    }
+
+    // stop all segments and wait until nobody writes the file
+    private void abort(List<Future<?>> futures) {
+        aborted = true;
+        for (HttpEngine.Response response : responses) {
+            response.abort();
+        }
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // length of continuous loaded part
+    private long getCompleted() {
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                long position = segment.position;
+                if (position < segment.end) {
+                    return position;
+                }
+            }
+        }
+        return length;
+    }
+
+    private List<SegmentStats> getStats() {
+        long now = System.nanoTime();
+        List<SegmentStats> stats = new ArrayList<>();
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                long loaded = segment.position - segment.start;
+                long time = (segment.finished != 0 ? segment.finished : now) - segment.created;
+                long speed = time > 0 ? (long) (loaded * (double) TimeUnit.SECONDS.toNanos(1) / time) : 0;
+                stats.add(new SegmentStats(segment.url, segment.start, segment.end, loaded, speed, segment.steals, segment.stolen));
+            }
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    // digest the continuous loaded part which includes other segments, it's called by the calling thread
+    private void digestCompleted(FileChannel channel) throws IOException {
+        if (digest != null) {
+            digest.catchUp(channel, getCompleted());
+        }
+    }
+
+    // report continuous loaded part after it is forced to the storage, it's called by the calling thread
+    private void checkpoint(FileChannel channel, DownloadService.Handler handler) throws IOException, InterruptedException {
+        if (service.isCheckpointTime(checkpointTime)) {
+            long completed = getCompleted();
+            channel.force(false);
+            handler.onCheckpoint(completed);
+            checkpointTime = System.nanoTime();
+        }
+    }
+
+    // keep only continuous loaded part, so the download can be resumed by file length
+    private void truncate() throws IOException {
+        DownloadService.truncate(file, getCompleted());
+    }
+
+
+    private static class Segment {
+        final long start;
+        volatile long end;  // exclusive, it is decreased by steal
+        volatile long position;  // end of the written part, it is changed by the loading thread
+        final boolean stolen;
+        volatile String url;  // mirror of the last request
+        volatile int steals = 0;  // it is changed under segments list lock
+        final long created = System.nanoTime();
+        volatile long finished = 0;  // System.nanoTime() when loading is ended, zero while it goes
+
+        Segment(long start, long end, boolean stolen) {
+            this.start = start;
+            this.end = end;
+            this.stolen = stolen;
+            position = start;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package ru.downloadmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * HTTP/1.1 engine over sockets taken from ConnectionPool.
+ * Connection is returned to the pool when the response body is read completely,
+ * so many small downloads from one host don't pay for TCP and TLS handshakes.
+ * Proxies and content encodings are not supported.
+ */
+public class SocketEngine implements HttpEngine {
+
+    private static final long MAX_DRAIN = 64 * 1024;  // unread rest of body which is skipped to keep connection
+    //    limits of response head, so broken server can't make the reader allocate without bound
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final int MAX_HEADERS_COUNT = 100;
+
+    private final ConnectionPool pool;
+    //    timeouts for requests which don't set their own
+    private volatile int connectTimeout = 0;  //ms, zero is infinite
+    private volatile int readTimeout = 0;  //ms, zero is infinite
+
+    public SocketEngine() {
+        this(new ConnectionPool());
+    }
+
+    public SocketEngine(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public Response open(Request request) throws IOException {
+        URL url = new URL(request.getUrl());
+        String scheme = url.getProtocol();
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            throw new IOException("Unsupported protocol: " + scheme);
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        //    IPv6 literal is bracketed only in URL and 'Host' header
+        String host = url.getHost().startsWith("[") ? url.getHost().substring(1, url.getHost().length() - 1) : url.getHost();
+
+        ConnectionPool.Connection connection = pool.acquire(scheme, host, port, connectTimeout(request), readTimeout(request));
+        try {
+            return send(connection, url, host, request);
+        } catch (IOException e) {
+            connection.close();
+            if (!connection.isReused()) {
+                throw e;
+            }
+            //    idle connection could be closed by server, so repeat with new one
+            connection = pool.acquire(scheme, host, port, connectTimeout(request), readTimeout(request));
+            try {
+                return send(connection, url, host, request);
+            } catch (IOException | RuntimeException e2) {
+                connection.close();
+                throw e2;
+            }
+        } catch (RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private int connectTimeout(Request request) {
+        return request.getConnectTimeout() > 0 ? request.getConnectTimeout() : connectTimeout;
+    }
+
+    private int readTimeout(Request request) {
+        return request.getReadTimeout() > 0 ? request.getReadTimeout() : readTimeout;
+    }
+
+    private Response send(ConnectionPool.Connection connection, URL url, String host, Request request) throws IOException {
+        connection.getSocket().setSoTimeout(readTimeout(request));
+
+        //    write request
+        StringBuilder head = new StringBuilder();
+        head.append(request.getMethod()).append(' ').append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(hostHeader(host, url.getPort())).append("\r\n");
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        OutputStream out = connection.out;
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        //    read status line and headers, informational responses are skipped
+        InputStream in = connection.in;
+        String statusLine;
+        int status;
+        Map<String, String> headers;
+        do {
+            statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new IOException("Connection closed without response");
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid HTTP status line: " + statusLine);
+            }
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid HTTP status line: " + statusLine);
+            }
+            headers = readHeaders(in);
+        } while (status >= 100 && status < 200);
+
+        //    choose body framing
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1")
+                ? !"close".equalsIgnoreCase(headers.get("connection"))
+                : "keep-alive".equalsIgnoreCase(headers.get("connection"));
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLengthValue = headers.get("content-length");
+        long contentLength = DownloadService.UNKNOWN;
+        InputStream body;
+        if (request.getMethod().equals("HEAD") || status == 204 || status == 304) {
+            contentLength = 0;
+            body = new FixedLengthInputStream(in, 0);
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            body = new ChunkedInputStream(in);
+        } else if (contentLengthValue != null) {
+            try {
+                contentLength = Long.parseLong(contentLengthValue.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid 'Content-Length' header value: " + contentLengthValue);
+            }
+            body = new FixedLengthInputStream(in, contentLength);
+        } else {
+            //    body ends with connection
+            keepAlive = false;
+            body = in;
+        }
+        return new SocketResponse(connection, status, headers, contentLength, body, keepAlive);
+    }
+
+    /**
+     * @param port port of URL, -1 for the default one
+     */
+    static String hostHeader(String host, int port) {
+        String value = host.indexOf(':') != -1 ? "[" + host + "]" : host;
+        return port != -1 ? value + ":" + port : value;
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        int count = 0;
+        for (String line; (line = readLine(in)) != null && !line.isEmpty(); ) {
+            if (++count > MAX_HEADERS_COUNT) {
+                throw new IOException("Too many HTTP headers");
+            }
+            int i = line.indexOf(':');
+            if (i > 0) {
+                headers.put(line.substring(0, i).trim().toLowerCase(), line.substring(i + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    // line without CRLF or null at the end of stream, longer line than MAX_LINE_LENGTH is an error
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString("ISO-8859-1");
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() > MAX_LINE_LENGTH) {
+                throw new IOException("Too long HTTP line");
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+
+    private class SocketResponse implements Response {
+        private final ConnectionPool.Connection connection;
+        private final int status;
+        private final Map<String, String> headers;
+        private final long contentLength;
+        private final InputStream body;
+        private final boolean keepAlive;
+        private volatile boolean closed = false;
+        private boolean aborted = false;  // guarded by this
+        private boolean released = false;  // connection is returned to the pool, guarded by this
+
+        SocketResponse(ConnectionPool.Connection connection, int status, Map<String, String> headers, long contentLength, InputStream body, boolean keepAlive) {
+            this.connection = connection;
+            this.status = status;
+            this.headers = headers;
+            this.contentLength = contentLength;
+            this.body = body;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        @Override
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (keepAlive && drain()) {
+                    synchronized (this) {
+                        if (!aborted) {
+                            released = true;
+                            pool.release(connection);
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                //    broken connection is just closed
+            }
+            connection.close();
+        }
+
+        // skip small unread part of the body
+        private boolean drain() throws IOException {
+            byte[] buffer = new byte[8192];
+            long skipped = 0;
+            while (skipped <= MAX_DRAIN) {
+                int readed = body.read(buffer);
+                if (readed == -1) {
+                    return true;
+                }
+                skipped += readed;
+            }
+            return false;
+        }
+
+        @Override
+        public void abort() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                aborted = true;
+            }
+            closed = true;
+            connection.close();
+        }
+    }
+
+    private static class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int readed = in.read(b, off, (int) Math.min(len, remaining));
+            if (readed == -1) {
+                throw new IOException("Connection closed before end of content, " + remaining + " bytes remain");
+            }
+            remaining -= readed;
+            return readed;
+        }
+    }
+
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long chunkRemaining = 0;
+        private boolean finished = false;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (chunkRemaining == 0) {
+                String line = readLine(in);
+                if (line == null) {
+                    throw new IOException("Connection closed before end of chunked content");
+                }
+                int i = line.indexOf(';');
+                try {
+                    chunkRemaining = Long.parseLong((i != -1 ? line.substring(0, i) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + line);
+                }
+                if (chunkRemaining == 0) {
+                    //    skip trailers
+                    readHeaders(in);
+                    finished = true;
+                    return -1;
+                }
+            }
+            int readed = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (readed == -1) {
+                throw new IOException("Connection closed before end of chunk");
+            }
+            chunkRemaining -= readed;
+            if (chunkRemaining == 0) {
+                readLine(in);  // CRLF after chunk data
+            }
+            return readed;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.downloadmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+
+/**
+ * Default engine based on HttpURLConnection
+ */
+public class URLConnectionEngine implements HttpEngine {
+
+    @Override
+    public Response open(Request request) throws IOException {
+        HttpURLConnection connection = openConnection(request.getUrl());
+        connection.setRequestMethod(request.getMethod());
+        if (request.getConnectTimeout() > 0) {
+            connection.setConnectTimeout(request.getConnectTimeout());
+        }
+        if (request.getReadTimeout() > 0) {
+            connection.setReadTimeout(request.getReadTimeout());
+        }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        try {
+            return new ConnectionResponse(connection, connection.getResponseCode());
+        } catch (IOException | RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    protected HttpURLConnection openConnection(String url) throws IOException {
+        return (HttpURLConnection) new URL(url).openConnection();
+    }
+
+
+    private static class ConnectionResponse implements Response {
+        private final HttpURLConnection connection;
+        private final int status;
+        private InputStream body;
+        private volatile boolean closed = false;
+
+        ConnectionResponse(HttpURLConnection connection, int status) {
+            this.connection = connection;
+            this.status = status;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            // int value is -1 for content longer than 2 GB
+            int length = connection.getContentLength();
+            return length != -1 ? length : connection.getContentLengthLong();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = connection.getInputStream();
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            //    closing of the stream returns connection to keep-alive cache, disconnect would close the socket
+            try {
+                InputStream in = body != null ? body
+                        : status < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public synchronized void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connection.disconnect();
+        }
+    }
+}
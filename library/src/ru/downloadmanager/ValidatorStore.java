@@ -0,0 +1,147 @@
+package ru.downloadmanager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Validators of downloaded files by URL for sync mode: the file, its length, ETag and Last-Modified of the response.
+ * Service with the store sends conditional requests for files which are complete, and doesn't load them again
+ * if the server answers 304 Not Modified. Store with a file keeps validators between runs, they are written by 'save'.
+ * Thread-safe
+ */
+public class ValidatorStore {
+
+    private final File file;  //null if validators are kept in memory only
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ValidatorStore() {
+        file = null;
+    }
+
+    /**
+     * Reads validators from the file if it exists
+     */
+    public ValidatorStore(File file) throws IOException {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split("\t", -1);
+                try {
+                    entries.put(decode(fields[0]), new Entry(new File(decode(fields[1])), Long.parseLong(fields[2]),
+                            fields[3].isEmpty() ? null : decode(fields[3]), fields[4].isEmpty() ? null : decode(fields[4])));
+                } catch (RuntimeException e) {
+                    //    broken line
+                }
+            }
+        }
+    }
+
+    /**
+     * @return validators of the last complete download of the URL or null
+     */
+    public Entry get(String url) {
+        return entries.get(url);
+    }
+
+    public void put(String url, Entry entry) {
+        entries.put(url, entry);
+    }
+
+    public void remove(String url) {
+        entries.remove(url);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Replaces the file of the store by current validators
+     */
+    public synchronized void save() throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("Store has no file");
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                out.write(encode(entry.getKey()) + "\t" + encode(value.file.getPath()) + "\t" + value.length
+                        + "\t" + encode(value.etag) + "\t" + encode(value.lastModified) + "\n");
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String encode(String value) {
+        try {
+            return value != null ? URLEncoder.encode(value, "UTF-8") : "";
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Constant validators of one downloaded file
+     */
+    public static class Entry {
+        private final File file;
+        private final long length;
+        private final String etag;  //null if the response had no ETag
+        private final String lastModified;  //null if the response had no Last-Modified
+
+        public Entry(File file, long length, String etag, String lastModified) {
+            this.file = file;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package ru.downloadmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Write-behind of transfers: downloading thread puts filled buffers to the bounded queue of a writer thread
+ * and continues reading while the writer writes them to the file.
+ * All writes to one file are done by one writer, so contiguous buffers are written by one gathering write.
+ * Written files are forced by writers once per sync interval, so one force covers many writes.
+ * Downloading thread waits if the queue is full or all buffers of its transfer are being written,
+ * count and time of such waits show that the storage is slower than the network.
+ * Thread-safe
+ */
+public class WritePipeline {
+
+    private static final int MAX_COALESCED = 64;  // buffers in one write
+    private static final long POLL_INTERVAL = 100;  //ms, writer checks sync times at least so often
+
+    private final Writer[] writers;
+    private final int depth;
+    private volatile long syncInterval = 1000;  //ms, zero disables periodic forces
+    private volatile boolean syncOnComplete = true;
+
+    //    metrics
+    private final LongAdder writes = new LongAdder();  // written buffers
+    private final LongAdder writeCalls = new LongAdder();  // writes to files after coalescing
+    private final LongAdder writtenBytes = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitTime = new LongAdder();  //nanos
+
+    /**
+     * Pipeline of 2 writers with queues of 256 buffers, each transfer has up to 4 buffers
+     */
+    public WritePipeline() {
+        this(2, 256, 4);
+    }
+
+    /**
+     * @param depth count of buffers of one transfer, it can read ahead of the writer by depth - 1 blocks
+     */
+    public WritePipeline(int writersCount, int queueCapacity, int depth) {
+        this.depth = depth;
+        writers = new Writer[writersCount];
+        for (int i = 0; i < writersCount; i++) {
+            writers[i] = new Writer(queueCapacity);
+            Thread thread = new Thread(writers[i], "download-writer");
+            thread.setDaemon(true);
+            thread.start();
+            writers[i].thread = thread;
+        }
+    }
+
+    /**
+     * @return count of buffers of one transfer
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Time in milliseconds after the first unforced write to a file when the writer forces it, zero disables it
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public boolean isSyncOnComplete() {
+        return syncOnComplete;
+    }
+
+    /**
+     * Whether transfer forces the file after its last write
+     */
+    public void setSyncOnComplete(boolean syncOnComplete) {
+        this.syncOnComplete = syncOnComplete;
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * @return count of writes to files, it is less than count of written buffers if they are coalesced
+     */
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    public long getForces() {
+        return forces.sum();
+    }
+
+    /**
+     * @return count of waits of downloading threads for the writers
+     */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    /**
+     * @return total time in milliseconds of waits of downloading threads for the writers
+     */
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.sum());
+    }
+
+    /**
+     * @return count of buffers in queues of writers
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Writer writer : writers) {
+            queued += writer.queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Stops writer threads, it must be called after all transfers are ended
+     */
+    public void shutdown() {
+        for (Writer writer : writers) {
+            writer.thread.interrupt();
+        }
+    }
+
+    /**
+     * Starts writing of one transfer to the channel
+     * @param pool pool of buffers, null to allocate them for the transfer
+     */
+    Transfer open(FileChannel channel, BufferPool pool, int blockSize) {
+        return new Transfer(channel, writers[Math.floorMod(System.identityHashCode(channel), writers.length)], pool, blockSize);
+    }
+
+
+    /**
+     * Writes of one downloading thread, buffers are written in order of 'write' calls.
+     * Methods, except completion of writes, are called by the downloading thread.
+     */
+    class Transfer {
+        private final FileChannel channel;
+        private final Writer writer;
+        private final BufferPool pool;
+        private final int blockSize;
+        private final ArrayBlockingQueue<ByteBuffer> free;
+        private int allocated = 0;
+        private ByteBuffer held;  // buffer which is filled by the downloading thread
+
+        //    guarded by this
+        private int inFlight = 0;
+        private final ArrayDeque<long[]> written = new ArrayDeque<>();  // end position and size of written buffers
+        private IOException error;  // writes after error are skipped
+
+        Transfer(FileChannel channel, Writer writer, BufferPool pool, int blockSize) {
+            this.channel = channel;
+            this.writer = writer;
+            this.pool = pool;
+            this.blockSize = blockSize;
+            free = new ArrayBlockingQueue<>(depth);
+        }
+
+        /**
+         * @return cleared buffer for the next block, it waits if all buffers are being written
+         */
+        ByteBuffer buffer() throws IOException, InterruptedException {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null && allocated < depth) {
+                if (pool == null) {
+                    buffer = ByteBuffer.allocateDirect(blockSize);
+                } else if (allocated == 0) {
+                    buffer = pool.acquire(blockSize);
+                } else {
+                    //    buffers in flight return to this transfer, not to the pool, so the pool can't be waited for
+                    buffer = pool.tryAcquire(blockSize);
+                }
+                if (buffer != null) {
+                    allocated++;
+                }
+            }
+            if (buffer == null) {
+                long start = System.nanoTime();
+                buffer = free.take();
+                waits.increment();
+                waitTime.add(System.nanoTime() - start);
+            }
+            held = buffer;
+            checkError();
+            buffer.clear();
+            return buffer;
+        }
+
+        /**
+         * Puts the flipped buffer to the queue, it waits if the queue is full
+         */
+        void write(ByteBuffer buffer, long position) throws IOException, InterruptedException {
+            checkError();
+            synchronized (this) {
+                inFlight++;
+            }
+            held = null;
+            Request request = new Request(this, buffer, position);
+            if (!writer.queue.offer(request)) {
+                long start = System.nanoTime();
+                try {
+                    writer.queue.put(request);
+                } catch (InterruptedException e) {
+                    completed(buffer, -1, null);
+                    throw e;
+                }
+                waits.increment();
+                waitTime.add(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * @return end position and size of buffers which are written since the last call, in order of writes
+         */
+        synchronized List<long[]> pollWritten() {
+            List<long[]> result = new ArrayList<>(written);
+            written.clear();
+            return result;
+        }
+
+        /**
+         * Waits until all buffers are written, interruption is postponed
+         */
+        synchronized void await() {
+            boolean interrupted = false;
+            while (inFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized boolean hasError() {
+            return error != null;
+        }
+
+        synchronized void checkError() throws IOException {
+            if (error != null) {
+                throw new IOException("Write error: " + error.getMessage(), error);
+            }
+        }
+
+        /**
+         * Waits for writes and returns buffers to the pool
+         */
+        void close() {
+            await();
+            if (held != null) {
+                free.add(held);
+                held = null;
+            }
+            if (pool != null) {
+                for (ByteBuffer buffer = free.poll(); buffer != null; buffer = free.poll()) {
+                    pool.release(buffer);
+                }
+            }
+        }
+
+        // called by the writer, end is -1 if the buffer isn't written
+        private void completed(ByteBuffer buffer, long end, IOException writeError) {
+            synchronized (this) {
+                if (end != -1) {
+                    written.addLast(new long[] {end, buffer.limit()});
+                }
+                if (writeError != null && error == null) {
+                    error = writeError;
+                }
+                inFlight--;
+                notifyAll();
+            }
+            free.add(buffer);
+        }
+    }
+
+    private static class Request {
+        final Transfer transfer;
+        final ByteBuffer buffer;
+        final long position;
+
+        Request(Transfer transfer, ByteBuffer buffer, long position) {
+            this.transfer = transfer;
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+
+    private class Writer implements Runnable {
+        final ArrayBlockingQueue<Request> queue;
+        Thread thread;
+        private final Map<FileChannel, Long> unforced = new IdentityHashMap<>();  // System.nanoTime() of the first write
+
+        Writer(int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            List<Request> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    Request first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_COALESCED - 1);
+                        write(batch);
+                        batch.clear();
+                    }
+                    sync();
+                }
+            } catch (InterruptedException e) {
+                //    shutdown
+            }
+        }
+
+        // write runs of contiguous buffers of one file by one call
+        private void write(List<Request> batch) {
+            int start = 0;
+            while (start < batch.size()) {
+                Request first = batch.get(start);
+                if (first.transfer.hasError()) {
+                    //    writes of a failed transfer are skipped, so its file has no holes after the written part
+                    first.transfer.completed(first.buffer, -1, null);
+                    start++;
+                    continue;
+                }
+                int end = start + 1;
+                long position = first.position + first.buffer.remaining();
+                while (end < batch.size() && batch.get(end).transfer.channel == first.transfer.channel
+                        && batch.get(end).position == position && !batch.get(end).transfer.hasError()) {
+                    position += batch.get(end).buffer.remaining();
+                    end++;
+                }
+                writeRun(batch.subList(start, end));
+                start = end;
+            }
+        }
+
+        private void writeRun(List<Request> run) {
+            FileChannel channel = run.get(0).transfer.channel;
+            ByteBuffer[] buffers = new ByteBuffer[run.size()];
+            long remaining = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = run.get(i).buffer;
+                remaining += buffers[i].remaining();
+            }
+            IOException error = null;
+            try {
+                //    only this writer writes the channel, so its position can be used for gathering write
+                channel.position(run.get(0).position);
+                while (remaining > 0) {
+                    long written = channel.write(buffers);
+                    writtenBytes.add(written);
+                    remaining -= written;
+                }
+                writeCalls.increment();
+                writes.add(run.size());
+                unforced.putIfAbsent(channel, System.nanoTime());
+            } catch (IOException e) {
+                error = e;
+            }
+            for (Request request : run) {
+                request.transfer.completed(request.buffer, error == null ? request.position + request.buffer.limit() : -1, error);
+            }
+        }
+
+        private void sync() {
+            long interval = TimeUnit.MILLISECONDS.toNanos(syncInterval);
+            if (interval == 0 || unforced.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<FileChannel, Long>> it = unforced.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<FileChannel, Long> entry = it.next();
+                if (now - entry.getValue() >= interval) {
+                    //    entry of IdentityHashMap isn't valid after its remove
+                    FileChannel channel = entry.getKey();
+                    it.remove();
+                    try {
+                        channel.force(false);
+                        forces.increment();
+                    } catch (ClosedChannelException e) {
+                        //    transfer is ended
+                    } catch (IOException e) {
+                        //    error will be found by the next write or force
+                    }
+                }
+            }
+        }
+    }
+}
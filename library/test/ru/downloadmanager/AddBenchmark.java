@@ -0,0 +1,74 @@
+package ru.downloadmanager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Manual benchmark of adding many URLs by 'add' and by 'addAll', downloads wait until the end, so only adding is measured.
+ * URLs share names of files like real batches, so numbers of names matter.
+ * Arguments: count of URLs (20000 by default), count of distinct file names (100 by default), directory (current by default).
+ * It isn't run with tests.
+ */
+public class AddBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int names = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        File dir = new File(args.length > 2 ? args[2] : ".", "add-benchmark");
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add("http://host" + i % 10 + ".url/files/" + i + "/file" + i % names + ".bin");
+        }
+
+        measure("add", dir, urls, manager -> {
+            for (String url : urls) {
+                manager.add(url, null);
+            }
+        });
+        measure("addAll", dir, urls, manager -> manager.addAll(urls, url -> null));
+    }
+
+    private static void measure(String mode, File dir, List<String> urls, Task task) throws Exception {
+        delete(dir);
+        Files.createDirectories(dir.toPath());
+        CountDownLatch end = new CountDownLatch(1);
+        DownloadManager manager = new DownloadManager(2, dir);
+        manager.service = new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws InterruptedException {
+                end.await();
+            }
+        };
+        try {
+            long start = System.nanoTime();
+            task.run(manager);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (manager.getSummary().getItemsCount() != urls.size()) {
+                throw new IllegalStateException(mode + " lost items");
+            }
+            System.out.printf("%-8s %8.2f s %10.0f items/s%n", mode, seconds, urls.size() / seconds);
+        } finally {
+            end.countDown();
+            manager.shutdown();
+            delete(dir);
+        }
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private interface Task {
+        void run(DownloadManager manager) throws Exception;
+    }
+}
@@ -0,0 +1,80 @@
+package ru.downloadmanager;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reuse() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer buffer = pool.acquire(60000);
+        assertEquals(65536, buffer.capacity());
+        assertTrue(buffer.isDirect());
+        assertEquals(65536, pool.getInUse());
+        pool.release(buffer);
+
+        assertSame(buffer, pool.acquire(65536));
+        assertEquals(1, pool.getAllocations());
+        assertEquals(65536, pool.getAllocated());
+    }
+
+    @Test
+    public void shrink() throws Exception {
+        BufferPool pool = new BufferPool(100000);
+        ByteBuffer first = pool.acquire(65536);
+        ByteBuffer second = pool.acquire(65536);
+
+        //    the rest of the budget is enough for smaller buffer only
+        assertEquals(32768, second.capacity());
+        assertEquals(1, pool.getShrinks());
+        pool.release(first);
+        pool.release(second);
+
+        //    free buffers of other sizes are dropped to get memory
+        pool.setBudget(65536);
+        assertEquals(65536, pool.acquire(65536).capacity());
+        assertEquals(65536, pool.getAllocated());
+    }
+
+    @Test
+    public void tryAcquire() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.MIN_SIZE);
+        ByteBuffer buffer = pool.tryAcquire(BufferPool.MIN_SIZE);
+        assertNotNull(buffer);
+        assertNull(pool.tryAcquire(BufferPool.MIN_SIZE));
+        pool.release(buffer);
+        assertSame(buffer, pool.tryAcquire(BufferPool.MIN_SIZE));
+        assertEquals(0, pool.getWaits());
+    }
+
+    @Test
+    public void waitForMemory() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.MIN_SIZE);
+        ByteBuffer buffer = pool.acquire(65536);
+        CompletableFuture<ByteBuffer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire(65536);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("Buffer is acquired above the budget");
+        } catch (TimeoutException e) {
+            //    expected
+        }
+
+        pool.release(buffer);
+        assertSame(buffer, waiting.get(1, TimeUnit.SECONDS));
+        assertEquals(1, pool.getWaits());
+    }
+}
@@ -7,9 +7,20 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static ru.downloadmanager.DownloadItemState.*;
 import static org.junit.Assert.*;
@@ -27,19 +38,20 @@ public class DownloadManagerTest {
         DIR.mkdirs();
 
         listenerMap = new ConcurrentHashMap<>();
-        downloadManager = new DownloadManager(2, new File("temp")) {
-            {
-                service = new DownloadService() {
-                    @Override
-                    public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
-                        ItemController listener = listenerMap.get(url);
-                        if (listener == null) {
-                            throw new IllegalArgumentException("Unknow url value: " + url);
-                        }
-                        listener.start();
-                        listener.awaitExecute();
-                    }
-                };
+        downloadManager = new DownloadManager(2, new File("temp"));
+        downloadManager.service = createService();
+    }
+
+    private DownloadService createService() {
+        return new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
+                ItemController listener = listenerMap.get(url);
+                if (listener == null) {
+                    throw new IllegalArgumentException("Unknow url value: " + url);
+                }
+                listener.start();
+                listener.awaitExecute();
             }
         };
     }
@@ -158,10 +170,545 @@ public class DownloadManagerTest {
     public void concurrentThirdWait() throws Exception {
         downloadManager.setThreadsCount(2);
 
+        checkConcurrentThirdWait();
+    }
+
+    @Test
+    public void concurrentThirdWaitForPermit() throws Exception {
+        downloadManager = new DownloadManager(Executors.newCachedThreadPool(), 2, DIR);
+        downloadManager.service = createService();
+
+        checkConcurrentThirdWait();
+    }
+
+    @Test
+    public void shutdownKeepsExecutor() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            downloadManager = new DownloadManager(executor, 2, DIR);
+            downloadManager.service = createService();
+            ItemController item = add("http://first.url");
+            item.awaitStart();
+
+            //    own tasks are stopped and waited for
+            downloadManager.shutdown();
+            item.checkState(downloadManager, STOPPED);
+            assertFalse(executor.isShutdown());
+            assertEquals(Integer.valueOf(1), executor.submit(() -> 1).get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void stopWaitingForPermit() throws Exception {
+        downloadManager = new DownloadManager(Executors.newCachedThreadPool(), 1, DIR);
+        downloadManager.service = createService();
+
+        ItemController item1 = add("http://first.url");
+        ItemController item2 = add("http://second.url");
+        item1.awaitStart();
+        item2.checkState(downloadManager, NEW);
+
+        downloadManager.stop(item2.id);
+        item2.awaitAndCheckState(STOPPED);
+
+        item1.execute();
+        item1.awaitAndCheckState(DONE);
+        item2.checkState(downloadManager, STOPPED);
+    }
+
+    @Test
+    public void hostLimit() throws Exception {
+        downloadManager.setThreadsCount(3);
+        downloadManager.setHostLimit(1);
+
+        ItemController item1 = add("http://first.url/1");
+        ItemController item2 = add("http://first.url/2");
+        ItemController item3 = add("http://second.url");
+        item1.awaitStart();
+        item3.awaitStart();
+        item2.checkState(downloadManager, NEW);
+
+        HostStats[] stats = downloadManager.getHostStats();
+        Arrays.sort(stats, (a, b) -> a.getHost().compareTo(b.getHost()));
+        assertEquals("first.url", stats[0].getHost());
+        assertEquals(1, stats[0].getPending());
+        assertEquals(1, stats[0].getActive());
+        assertEquals("second.url", stats[1].getHost());
+        assertEquals(0, stats[1].getPending());
+        assertEquals(1, stats[1].getActive());
+
+        item1.execute();
+        item1.awaitAndCheckState(DONE);
+        item2.awaitStart();
+        item2.execute();
+        item3.execute();
+        item2.awaitAndCheckState(DONE);
+        item3.awaitAndCheckState(DONE);
+    }
+
+    @Test
+    public void roundRobinHosts() throws Exception {
+        downloadManager.setThreadsCount(1);
+
+        ItemController item1 = add("http://first.url/1");
+        ItemController item2 = add("http://first.url/2");
+        ItemController item3 = add("http://first.url/3");
+        ItemController item4 = add("http://second.url");
+        item1.awaitStart();
+
+        // other host goes before the rest of the first host
+        item1.execute();
+        item1.awaitAndCheckState(DONE);
+        item4.awaitStart();
+        item2.checkState(downloadManager, NEW);
+        item3.checkState(downloadManager, NEW);
+
+        downloadManager.stop(item3.id);
+        item3.awaitAndCheckState(STOPPED);
+        item4.execute();
+        item4.awaitAndCheckState(DONE);
+        item2.awaitStart();
+        item2.execute();
+        item2.awaitAndCheckState(DONE);
+        assertEquals(0, downloadManager.getHostStats().length);
+    }
+
+    private ItemController add(String url, int priority) throws IOException {
+        ItemController item = new ItemController(url);
+        listenerMap.put(url, item);
+        item.id = downloadManager.add(url, priority, item).getId();
+        return item;
+    }
+
+    @Test
+    public void priority() throws Exception {
+        downloadManager.setThreadsCount(1);
+
+        ItemController item1 = add("http://first.url/1");
+        ItemController bulk1 = add("http://first.url/bulk1", 0);
+        ItemController bulk2 = add("http://first.url/bulk2", 0);
+        ItemController urgent = add("http://first.url/urgent", 5);
+        item1.awaitStart();
+
+        item1.execute();
+        item1.awaitAndCheckState(DONE);
+        urgent.awaitStart();
+        bulk1.checkState(downloadManager, NEW);
+        bulk2.checkState(downloadManager, NEW);
+
+        downloadManager.setPriority(bulk2.id, 1);
+        assertEquals(1, downloadManager.getState(bulk2.id).getPriority());
+        urgent.execute();
+        urgent.awaitAndCheckState(DONE);
+        bulk2.awaitStart();
+        bulk1.checkState(downloadManager, NEW);
+
+        bulk2.execute();
+        bulk1.execute();
+        bulk2.awaitAndCheckState(DONE);
+        bulk1.awaitAndCheckState(DONE);
+    }
+
+    @Test
+    public void aging() throws Exception {
+        downloadManager.setThreadsCount(1);
+        downloadManager.setAgingInterval(1);
+
+        ItemController item1 = add("http://first.url/1");
+        ItemController old = add("http://first.url/old", 0);
+        Thread.sleep(50);
+        ItemController urgent = add("http://second.url/urgent", 10);
+        item1.awaitStart();
+
+        // waiting time outweighs priority
+        item1.execute();
+        item1.awaitAndCheckState(DONE);
+        old.awaitStart();
+        urgent.checkState(downloadManager, NEW);
+
+        old.execute();
+        urgent.execute();
+        old.awaitAndCheckState(DONE);
+        urgent.awaitAndCheckState(DONE);
+    }
+
+    private void awaitState(int id, DownloadItemState expected) throws InterruptedException {
+        for (int i = 0; i < 100 && downloadManager.getState(id).getState() != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, downloadManager.getState(id).getState());
+    }
+
+    @Test
+    public void journal() throws Exception {
+        File journal = new File(DIR, "journal");
+        journal.delete();
+        downloadManager.openJournal(journal);
+
         ItemController item1 = add("http://first.url");
         ItemController item2 = add("http://second.url");
         ItemController item3 = add("http://third.url");
+        item1.awaitStart();
+        item2.awaitStart();
+        item2.execute();
+        item2.awaitAndCheckState(DONE);
+        downloadManager.remove(item3.id);
+        item3.awaitAndCheckState(STOPPED);
+
+        // item stopped by shutdown is resumed by the next manager
+        downloadManager.shutdown();
+        item1.awaitAndCheckState(STOPPED);
+
+        downloadManager = new DownloadManager(2, DIR);
+        downloadManager.service = createService();
+        ItemController resumed = new ItemController("http://first.url");
+        listenerMap.put("http://first.url", resumed);
+        downloadManager.openJournal(journal);
+
+        resumed.awaitStart();
+        assertEquals(2, downloadManager.getState().getItems().length);
+        assertEquals(DONE, downloadManager.getState(item2.id).getState());
+        assertNull(downloadManager.getState(item3.id));
+        assertEquals(item3.id + 1, add("http://fourth.url", true).id);
+
+        resumed.execute();
+        awaitState(item1.id, DONE);
+        assertNull(downloadManager.getJournalError());
+    }
+
+    @Test
+    public void journalAfterCrash() throws Exception {
+        File file = new File(DIR, "crash.bin");
+        Files.write(file.toPath(), new byte[1000]);
+        File journalFile = new File(DIR, "crash-journal");
+        DownloadJournal journal = new DownloadJournal(journalFile);
+        DownloadJournal.Entry entry = new DownloadJournal.Entry(5, "http://first.url", file);
+        entry.state = STARTED;
+        entry.checkpoint = 300;
+        entry.total = 1000;
+        journal.compact(() -> Collections.singletonList(entry), 6);
+        journal.close();
+        Files.write(journalFile.toPath(), "checkpoint\t5\t9".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        ItemController item = new ItemController("http://first.url");
+        listenerMap.put("http://first.url", item);
+        downloadManager.openJournal(journalFile);
+
+        // file is truncated to the checkpoint, incomplete record is ignored
+        item.awaitStart();
+        assertEquals(300, file.length());
+        assertEquals(300, downloadManager.getState(5).getReceived());
+        assertEquals(1000, downloadManager.getState(5).getTotal());
+
+        item.execute();
+        awaitState(5, DONE);
+    }
+
+    @Test
+    public void retry() throws Exception {
+        downloadManager.setRetryPolicy(new RetryPolicy(3, 1, 1, 1, 0,
+                Collections.singleton(503), Collections.singletonList(IOException.class)));
+        AtomicInteger attempts = new AtomicInteger();
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
+                if (url.equals("http://unavailable.url")) {
+                    throw new DownloadException("Unsuccess status code: 503", 503);
+                }
+                if (attempts.incrementAndGet() < 3) {
+                    throw new IOException("Connection reset");
+                }
+            }
+        };
+
+        ItemController item = add("http://first.url");
+        item.awaitAndCheckState(DONE);
+        assertEquals(2, downloadManager.getState(item.id).getRetries());
+
+        // transient error keeps the file to resume it
+        ItemController unavailable = add("http://unavailable.url");
+        unavailable.awaitAndCheckState(ERROR);
+        DownloadItem state = downloadManager.getState(unavailable.id);
+        assertEquals(2, state.getRetries());
+        assertEquals(503, ((DownloadException) state.getError()).getStatusCode());
+        assertTrue(state.getFile().exists());
+    }
+
+    @Test
+    public void stalledRestart() throws Exception {
+        downloadManager.setStallTimeout(500);
+        AtomicInteger attempts = new AtomicInteger();
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
+                if (attempts.incrementAndGet() > 1) {
+                    return;
+                }
+                //    frozen response which is broken only by abort
+                CountDownLatch aborted = new CountDownLatch(1);
+                handler.onResponse(new HttpEngine.Response() {
+                    @Override
+                    public int getStatus() {
+                        return 200;
+                    }
+
+                    @Override
+                    public String getHeader(String name) {
+                        return null;
+                    }
+
+                    @Override
+                    public long getContentLength() {
+                        return UNKNOWN;
+                    }
+
+                    @Override
+                    public InputStream getBody() {
+                        return null;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+
+                    @Override
+                    public void abort() {
+                        aborted.countDown();
+                    }
+                });
+                if (!aborted.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Stalled response isn't aborted");
+                }
+                throw new IOException("Socket closed");
+            }
+        };
+
+        ItemController item = add("http://first.url");
+        item.awaitAndCheckState(DONE);
+        assertEquals(2, attempts.get());
+        assertEquals(1, downloadManager.getState(item.id).getRetries());
+    }
+
+    @Test
+    public void mirrors() throws Exception {
+        List<String> urls = Arrays.asList("http://first.url", "http://second.url");
+        List<List<String>> downloaded = Collections.synchronizedList(new ArrayList<>());
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(List<String> urls, File file, Handler handler) {
+                downloaded.add(urls);
+            }
+        };
+
+        ItemController item = new ItemController("first.url");
+        item.id = downloadManager.add(urls, 0, item).getId();
+        item.awaitAndCheckState(DONE);
+        assertEquals(Collections.singletonList(urls), downloaded);
+        assertEquals("http://first.url", downloadManager.getState(item.id).getUrl());
+        assertEquals(Collections.singletonList("http://second.url"), downloadManager.getState(item.id).getMirrors());
+    }
+
+    @Test
+    public void checksumMismatch() throws Exception {
+        Checksum checksum = new Checksum("SHA-256", "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff");
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(List<String> urls, File file, Checksum expected, Handler handler) throws DownloadException {
+                assertEquals(checksum, expected);
+                throw new DownloadException("SHA-256 checksum mismatch");
+            }
+        };
+
+        ItemController item = new ItemController("first.url");
+        item.id = downloadManager.add("http://first.url", 0, checksum, item).getId();
+        item.awaitAndCheckState(ERROR);
+        assertTrue(downloadManager.getState(item.id).getError() instanceof DownloadException);
+        assertEquals(checksum, downloadManager.getState(item.id).getChecksum());
+        //    checksum error isn't retried
+        assertEquals(0, downloadManager.getState(item.id).getRetries());
+    }
+
+    @Test
+    public void syncReusesFile() throws Exception {
+        File file = new File(DIR, "synced");
+        Files.write(file.toPath(), new byte[100]);
+        ValidatorStore store = new ValidatorStore(new File(DIR, "validators"));
+        store.put("http://first.url", new ValidatorStore.Entry(file.getAbsoluteFile(), 100, "\"v1\"", null));
+        store.save();
+        store = new ValidatorStore(new File(DIR, "validators"));
+        assertEquals("\"v1\"", store.get("http://first.url").getEtag());
+        downloadManager.setValidatorStore(store);
+
+        ItemController item = add("http://first.url");
+        item.execute();
+        item.awaitAndCheckState(DONE);
+        assertEquals(file.getAbsoluteFile(), downloadManager.getState(item.id).getFile());
+    }
+
+    @Test
+    public void duplicates() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        DownloadService service = downloadManager.service;
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
+                downloads.incrementAndGet();
+                Files.write(file.toPath(), url.getBytes(StandardCharsets.UTF_8));
+                service.download(url, file, followRedirects, rangeFrom, handler);
+            }
+        };
+
+        ItemController item = add("http://first.url");
+        item.awaitStart();
+        List<ItemController> duplicates = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ItemController duplicate = new ItemController("first.url");
+            duplicate.id = downloadManager.add("http://First.URL", duplicate).getId();
+            duplicates.add(duplicate);
+        }
+        item.execute();
+        item.awaitAndCheckState(DONE);
+        for (ItemController duplicate : duplicates) {
+            duplicate.awaitAndCheckState(DONE);
+            DownloadItem state = downloadManager.getState(duplicate.id);
+            assertNotEquals(downloadManager.getState(item.id).getFile(), state.getFile());
+            assertEquals("http://first.url", new String(Files.readAllBytes(state.getFile().toPath()), StandardCharsets.UTF_8));
+            assertEquals(state.getFile().length(), state.getReceived());
+        }
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    public void syncDuplicates() throws Exception {
+        File file = new File(DIR, "synced");
+        Files.write(file.toPath(), new byte[100]);
+        ValidatorStore store = new ValidatorStore();
+        store.put("http://first.url", new ValidatorStore.Entry(file.getAbsoluteFile(), 100, "\"v1\"", null));
+        downloadManager.setValidatorStore(store);
+
+        ItemController item = add("http://first.url");
+        item.awaitStart();
+        ItemController duplicate = new ItemController("first.url");
+        duplicate.id = downloadManager.add("http://first.url", duplicate).getId();
+        ItemController removed = new ItemController("first.url");
+        removed.id = downloadManager.add("http://first.url", removed).getId();
+        downloadManager.remove(removed.id);
+        item.execute();
+        item.awaitAndCheckState(DONE);
+        removed.awaitAndCheckState(STOPPED);
+
+        //    the stored file is shared, not copied onto itself or deleted by removed duplicate
+        duplicate.awaitAndCheckState(DONE);
+        assertEquals(file.getAbsoluteFile(), downloadManager.getState(duplicate.id).getFile());
+        assertEquals(100, downloadManager.getState(duplicate.id).getReceived());
+        assertTrue(file.exists());
+    }
+
+    @Test
+    public void syncDuplicatesWithoutCoalesce() throws Exception {
+        File file = new File(DIR, "synced");
+        Files.write(file.toPath(), new byte[100]);
+        ValidatorStore store = new ValidatorStore();
+        store.put("http://first.url", new ValidatorStore.Entry(file.getAbsoluteFile(), 100, "\"v1\"", null));
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        AtomicInteger downloads = new AtomicInteger();
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws InterruptedException {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                downloads.incrementAndGet();
+                Thread.sleep(100);
+                active.decrementAndGet();
+            }
+        };
+        downloadManager.setValidatorStore(store);
+        downloadManager.setCoalesce(false);
+
+        //    both items load the stored file, but one by one
+        ItemController item = new ItemController("first.url");
+        item.id = downloadManager.add("http://first.url", item).getId();
+        ItemController duplicate = new ItemController("first.url");
+        duplicate.id = downloadManager.add("http://first.url", duplicate).getId();
+        item.awaitAndCheckState(DONE);
+        duplicate.awaitAndCheckState(DONE);
+        assertEquals(file.getAbsoluteFile(), downloadManager.getState(duplicate.id).getFile());
+        assertEquals(2, downloads.get());
+        assertEquals(1, maxActive.get());
+    }
 
+    @Test
+    public void duplicateOfFailed() throws Exception {
+        CountDownLatch fail = new CountDownLatch(1);
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
+                listenerMap.get(url).start();
+                fail.await();
+                throw new DownloadException("Unsuccess status code: 404", 404);
+            }
+        };
+
+        ItemController item = add("http://first.url");
+        item.awaitStart();
+        ItemController duplicate = new ItemController("first.url");
+        duplicate.id = downloadManager.add("http://first.url", duplicate).getId();
+        File file = downloadManager.getState(duplicate.id).getFile();
+        assertTrue(file.exists());
+        fail.countDown();
+        item.awaitAndCheckState(ERROR);
+
+        //    file of not retryable error is removed as the file of the item
+        duplicate.awaitAndCheckState(ERROR);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void duplicateOfStopped() throws Exception {
+        ItemController item = add("http://first.url");
+        item.awaitStart();
+        ItemController duplicate = new ItemController("first.url");
+        duplicate.id = downloadManager.add("http://first.url", duplicate).getId();
+        duplicate.checkState(downloadManager, NEW);
+
+        //    duplicate is loaded itself
+        listenerMap.put("http://first.url", duplicate);
+        downloadManager.stop(item.id);
+        item.awaitAndCheckState(STOPPED);
+        duplicate.awaitStart();
+        duplicate.execute();
+        duplicate.awaitAndCheckState(DONE);
+    }
+
+    @Test
+    public void addAll() throws Exception {
+        List<String> urls = Arrays.asList("http://first.url/batch.txt", "http://second.url/batch.txt", "http://third.url/batch.txt");
+        List<ItemController> items = new ArrayList<>();
+        List<DownloadItem> added = downloadManager.addAll(urls, url -> {
+            ItemController item = new ItemController(url);
+            listenerMap.put(url, item);
+            items.add(item);
+            return item;
+        });
+
+        assertEquals(3, added.size());
+        assertEquals(new File(DIR, "batch.txt"), added.get(0).getFile());
+        assertEquals(new File(DIR, "batch (2).txt"), added.get(1).getFile());
+        assertEquals(new File(DIR, "batch (3).txt"), added.get(2).getFile());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(urls.get(i), added.get(i).getUrl());
+            items.get(i).id = added.get(i).getId();
+        }
+        checkConcurrentThirdWait(items.get(0), items.get(1), items.get(2));
+    }
+
+    private void checkConcurrentThirdWait() throws Exception {
+        checkConcurrentThirdWait(add("http://first.url"), add("http://second.url"), add("http://third.url"));
+    }
+
+    private void checkConcurrentThirdWait(ItemController item1, ItemController item2, ItemController item3) throws Exception {
         // two item must be started, third item must not
         item1.awaitStart();
         item2.awaitStart();
@@ -204,4 +751,112 @@ public class DownloadManagerTest {
         item1.execute();
         item1.awaitAndCheckState(DONE);
     }
+
+    @Test
+    public void summary() throws Exception {
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
+                handler.onProgress(300, 1000);
+                ItemController listener = listenerMap.get(url);
+                listener.start();
+                listener.awaitExecute();
+                handler.onProgress(1000, 1000);
+            }
+        };
+
+        ItemController item1 = add("http://first.url");
+        ItemController item2 = add("http://second.url");
+        item1.awaitStart();
+        item2.awaitStart();
+        DownloadSummary summary = downloadManager.getSummary();
+        assertEquals(2000, summary.getTotal());
+        assertEquals(600, summary.getReceived());
+        assertEquals(2, summary.getCount(STARTED));
+
+        item1.execute();
+        item1.awaitAndCheckState(DONE);
+        summary = downloadManager.getSummary();
+        assertEquals(2000, summary.getTotal());
+        assertEquals(1300, summary.getReceived());
+        assertEquals(1, summary.getCount(DONE));
+        assertEquals(1, summary.getActiveCount());
+
+        downloadManager.remove(item1.id);
+        summary = downloadManager.getSummary();
+        assertEquals(1000, summary.getTotal());
+        assertEquals(300, summary.getReceived());
+        assertEquals(1, summary.getItemsCount());
+
+        item2.execute();
+        item2.awaitAndCheckState(DONE);
+        DownloadState state = downloadManager.getState();
+        assertEquals(1000, state.getTotal());
+        assertEquals(1000, state.getReceived());
+    }
+
+    @Test
+    public void progressChangesAreThrottled() throws Exception {
+        downloadManager.service = new DownloadService() {
+            @Override
+            public void download(String url, File file, int followRedirects, long rangeFrom, Handler handler) throws IOException, DownloadException, InterruptedException {
+                for (int i = 1; i <= 1000; i++) {
+                    handler.onProgress(i, 1000);
+                }
+                ItemController listener = listenerMap.get(url);
+                listener.start();
+                listener.awaitExecute();
+            }
+        };
+
+        long since = downloadManager.getVersion();
+        ItemController item = add("http://first.url");
+        item.awaitStart();
+        assertTrue("versions of progress blocks", downloadManager.getVersion() - since < 10);
+
+        //    the last progress is registered by the watchdog
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        DownloadChanges changes = downloadManager.getChangesSince(since);
+        while (changes.getItems().length == 0 || changes.getItems()[0].getReceived() != 1000) {
+            assertTrue("progress isn't registered", System.nanoTime() < deadline);
+            Thread.sleep(50);
+            changes = downloadManager.getChangesSince(since);
+        }
+
+        item.execute();
+        item.awaitAndCheckState(DONE);
+    }
+
+    @Test
+    public void changesSince() throws Exception {
+        ItemController item1 = add("http://first.url");
+        ItemController item2 = add("http://second.url");
+        item1.awaitStart();
+        item2.awaitStart();
+
+        DownloadChanges changes = downloadManager.getChangesSince(0);
+        assertFalse(changes.isFull());
+        assertEquals(2, changes.getItems().length);
+        assertEquals(downloadManager.getVersion(), changes.getVersion());
+
+        item1.execute();
+        item1.awaitAndCheckState(DONE);
+        changes = downloadManager.getChangesSince(changes.getVersion());
+        assertEquals(1, changes.getItems().length);
+        assertEquals(item1.id, changes.getItems()[0].getId());
+        assertEquals(DONE, changes.getItems()[0].getState());
+        assertEquals(0, changes.getRemoved().length);
+
+        downloadManager.remove(item1.id);
+        changes = downloadManager.getChangesSince(changes.getVersion());
+        assertEquals(0, changes.getItems().length);
+        assertArrayEquals(new int[] {item1.id}, changes.getRemoved());
+
+        changes = downloadManager.getChangesSince(changes.getVersion());
+        assertEquals(0, changes.getItems().length);
+        assertEquals(0, changes.getRemoved().length);
+
+        item2.execute();
+        item2.awaitAndCheckState(DONE);
+    }
 }
@@ -6,18 +6,26 @@ import org.junit.Before;
 import org.junit.Test;
 import sun.misc.IOUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DownloadServiceTest {
 
@@ -28,8 +36,13 @@ public class DownloadServiceTest {
     private DownloadService service;
     private byte[] source;
     private int maxReadBlock;
+    private boolean acceptRanges;
+    private int failPosition;  // connection is broken at this source position, -1 for no failure
+    private int slowRange;  // connection of range from this position sleeps on each read, -1 for no slow connection
 
     private Map<String, String> redirectMap;
+    private Map<String, String> etagMap;
+    private Set<String> brokenURLs;  // reading of these URLs fails
     private List<String> accessedURLs;
 
     private DownloadService.Handler downloadHandler;
@@ -46,8 +59,13 @@ public class DownloadServiceTest {
 
         source = generateRandomBytes(16384);
         maxReadBlock = Integer.MAX_VALUE;
+        acceptRanges = false;
+        failPosition = -1;
+        slowRange = -1;
         redirectMap = new HashMap<>();
-        accessedURLs = new ArrayList<>();
+        etagMap = new HashMap<>();
+        brokenURLs = new HashSet<>();
+        accessedURLs = Collections.synchronizedList(new ArrayList<>());
         service = new DownloadService() {
             @Override
             protected HttpURLConnection openConnection(String requestUrl) throws IOException {
@@ -55,6 +73,8 @@ public class DownloadServiceTest {
                 return new HttpURLConnection(new URL(requestUrl)) {
                     int sourcePosition = 0;
                     int range = 0;
+                    int rangeEnd = source.length;
+                    boolean notModified = false;
 
                     @Override
                     public void disconnect() {
@@ -74,6 +94,9 @@ public class DownloadServiceTest {
                         if (redirectMap.containsKey(requestUrl)) {
                             return HttpURLConnection.HTTP_MOVED_TEMP;
                         }
+                        if (notModified) {
+                            return HttpURLConnection.HTTP_NOT_MODIFIED;
+                        }
                         if (range != 0) {
                             return HttpURLConnection.HTTP_PARTIAL;
                         }
@@ -89,7 +112,13 @@ public class DownloadServiceTest {
                             return redirectMap.get(requestUrl);
                         }
                         if (name.equals("Content-Range")) {
-                            return "bytes " + range + "-" + (source.length-range-1) + "/" + source.length;
+                            return "bytes " + range + "-" + (rangeEnd-1) + "/" + source.length;
+                        }
+                        if (name.equals("Accept-Ranges")) {
+                            return acceptRanges ? "bytes" : null;
+                        }
+                        if (name.equals("ETag")) {
+                            return etagMap.get(requestUrl);
                         }
                         return null;
                     }
@@ -97,17 +126,28 @@ public class DownloadServiceTest {
                     @Override
                     public void setRequestProperty(String key, String value) {
                         if (key.equals("Range")) {
-                            Matcher matcher = Pattern.compile("bytes=([0-9]+)-").matcher(value);
+                            Matcher matcher = Pattern.compile("bytes=([0-9]+)-([0-9]*)").matcher(value);
                             if (!matcher.matches()) {
                                 throw new RuntimeException("Unsupported 'Range' format: " + value);
                             }
                             sourcePosition = range = Integer.valueOf(matcher.group(1));
+                            if (!matcher.group(2).isEmpty()) {
+                                rangeEnd = Integer.valueOf(matcher.group(2)) + 1;
+                            }
+                        }
+                        if (key.equals("If-None-Match")) {
+                            notModified = value.equals(etagMap.get(requestUrl));
+                        }
+                        //    whole content of other version
+                        if (key.equals("If-Range") && !value.equals(etagMap.get(requestUrl))) {
+                            sourcePosition = range = 0;
+                            rangeEnd = source.length;
                         }
                     }
 
                     @Override
                     public int getContentLength() {
-                        return source.length - range;
+                        return rangeEnd - range;
                     }
 
                     @Override
@@ -115,7 +155,7 @@ public class DownloadServiceTest {
                         return new InputStream() {
                             @Override
                             public int read() throws IOException {
-                                if (sourcePosition == source.length) {
+                                if (sourcePosition == rangeEnd) {
                                     return -1;
                                 }
                                 return source[sourcePosition++];
@@ -123,11 +163,24 @@ public class DownloadServiceTest {
 
                             @Override
                             public int read(byte[] b, int off, int len) throws IOException {
-                                if (source.length == sourcePosition) {
+                                if (rangeEnd == sourcePosition) {
                                     return -1;
                                 }
+                                if (sourcePosition == failPosition || brokenURLs.contains(requestUrl)) {
+                                    throw new IOException("Connection reset");
+                                }
+                                if (sourcePosition < failPosition) {
+                                    len = Math.min(len, failPosition - sourcePosition);
+                                }
+                                if (range == slowRange) {
+                                    try {
+                                        Thread.sleep(1);
+                                    } catch (InterruptedException e) {
+                                        throw new IOException(e);
+                                    }
+                                }
                                 len = Math.min(len, maxReadBlock);
-                                len = Math.min(len, source.length - sourcePosition);
+                                len = Math.min(len, rangeEnd - sourcePosition);
                                 System.arraycopy(source, sourcePosition, b, off, len);
                                 sourcePosition += len;
                                 return len;
@@ -217,6 +270,470 @@ public class DownloadServiceTest {
         }
     }
 
+    @Test
+    public void resumeAfterIOError() throws Exception {
+        File file = new File(DIR, "temp");
+
+        service.setBlockSize(1000);
+        failPosition = 10000;
+        try {
+            service.download("http://any.url", file, downloadHandler);
+            fail("I/O error is expected");
+        } catch (IOException e) {
+            // loaded blocks are kept
+            assertEquals(10000, file.length());
+        }
+
+        failPosition = -1;
+        service.download("http://any.url", file, downloadHandler);
+
+        assertEquals(source.length, received);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        File file = new File(DIR, "temp");
+
+        WritePipeline pipeline = new WritePipeline(1, 4, 2);
+        service.setWritePipeline(pipeline);
+        service.setBlockSize(1000);
+        failPosition = 10000;
+        try {
+            service.download("http://any.url", file, downloadHandler);
+            fail("I/O error is expected");
+        } catch (IOException e) {
+            // blocks in the queue are written before the error
+            assertEquals(10000, file.length());
+        }
+
+        failPosition = -1;
+        service.download("http://any.url", file, downloadHandler);
+        pipeline.shutdown();
+
+        assertEquals(source.length, received);
+        assertEquals(source.length, pipeline.getWrittenBytes());
+        assertEquals(17, pipeline.getWrites());
+        assertTrue(pipeline.getWriteCalls() <= pipeline.getWrites());
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void writeBehindLongerThanSync() throws Exception {
+        File file = new File(DIR, "temp");
+
+        WritePipeline pipeline = new WritePipeline(1, 4, 2);
+        pipeline.setSyncInterval(20);
+        service.setWritePipeline(pipeline);
+        service.setBlockSize(100);
+        maxReadBlock = 100;
+        slowRange = 0;
+        service.download("http://any.url", file, downloadHandler);
+        pipeline.shutdown();
+
+        // writer survives periodic forces
+        assertTrue(pipeline.getForces() > 1);
+        assertEquals(source.length, received);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void writeBehindSmallPool() throws Exception {
+        File file = new File(DIR, "temp");
+
+        // pool has memory for 2 buffers of 4 which the transfer may use
+        WritePipeline pipeline = new WritePipeline(1, 16, 4);
+        service.setWritePipeline(pipeline);
+        service.setBufferPool(new BufferPool(8192));
+        service.setBlockSize(4096);
+        service.download("http://any.url", file, downloadHandler);
+        pipeline.shutdown();
+
+        assertEquals(source.length, received);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void writeBehindSegmented() throws Exception {
+        File file = new File(DIR, "temp");
+
+        WritePipeline pipeline = new WritePipeline();
+        service.setWritePipeline(pipeline);
+        service.setBufferPool(new BufferPool(65536));
+        acceptRanges = true;
+        maxReadBlock = 100;
+        service.setBlockSize(512);
+        service.setSegmentsCount(4);
+        service.setMinSegmentSize(1024);
+        service.download("http://any.url", file, downloadHandler);
+        pipeline.shutdown();
+
+        assertEquals(source.length, received);
+        assertEquals(source.length, pipeline.getWrittenBytes());
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void memoryMapped() throws Exception {
+        File file = new File(DIR, "temp");
+
+        service.setMappedWindow(5000);
+        service.setBlockSize(1000);
+        failPosition = 10000;
+        try {
+            service.download("http://any.url", file, downloadHandler);
+            fail("I/O error is expected");
+        } catch (IOException e) {
+            // loaded blocks are kept
+            assertEquals(10000, file.length());
+        }
+
+        failPosition = -1;
+        service.download("http://any.url", file, downloadHandler);
+
+        assertEquals(source.length, received);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void memoryMappedSegmented() throws Exception {
+        File file = new File(DIR, "temp");
+
+        acceptRanges = true;
+        maxReadBlock = 100;
+        service.setMappedWindow(4096);
+        service.setSegmentsCount(4);
+        service.setMinSegmentSize(1024);
+        service.download("http://any.url", file, downloadHandler);
+
+        assertEquals(source.length, received);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void checksum() throws Exception {
+        File file = new File(DIR, "temp");
+        Checksum checksum = new Checksum("SHA-256", Checksum.toHex(MessageDigest.getInstance("SHA-256").digest(source)));
+
+        //    the loaded part is digested from the file, the rest from transfer buffers
+        Files.write(file.toPath(), Arrays.copyOf(source, 5000));
+        service.setBlockSize(1000);
+        service.download("http://any.url", file, checksum, downloadHandler);
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+
+        try {
+            service.download("http://any.url", file, Checksum.parse("MD5:00112233445566778899aabbccddeeff"), downloadHandler);
+            fail("Checksum error is expected");
+        } catch (DownloadException e) {
+            assertTrue(e.getMessage().contains("MD5"));
+            assertTrue(!file.exists());
+        }
+    }
+
+    @Test
+    public void checksumSegmented() throws Exception {
+        File file = new File(DIR, "temp");
+        Checksum checksum = new Checksum("SHA-256", Checksum.toHex(MessageDigest.getInstance("SHA-256").digest(source)));
+
+        acceptRanges = true;
+        maxReadBlock = 100;
+        slowRange = 0;
+        service.setBlockSize(512);
+        service.setSegmentsCount(4);
+        service.setMinSegmentSize(1024);
+        service.download("http://any.url", file, checksum, downloadHandler);
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void sync() throws Exception {
+        File file = new File(DIR, "temp");
+        String url = "http://any.url";
+        ValidatorStore store = new ValidatorStore();
+        service.setValidatorStore(store);
+        etagMap.put(url, "\"v1\"");
+        service.download(url, file, downloadHandler);
+        assertEquals("\"v1\"", store.get(url).getEtag());
+        assertEquals(source.length, store.get(url).getLength());
+
+        //    not modified file isn't loaded
+        byte[] loaded = source;
+        source = generateRandomBytes(source.length);
+        brokenURLs.add(url);
+        received = 0;
+        service.download(url, file, downloadHandler);
+        assertEquals(loaded.length, received);
+        assertEquals(loaded.length, total);
+        try (FileInputStream in = new FileInputStream(file)) {
+            assertArrayEquals("file isn't changed", loaded, IOUtils.readFully(in, -1, false));
+        }
+
+        //    modified file is loaded from the start
+        brokenURLs.clear();
+        etagMap.put(url, "\"v2\"");
+        service.download(url, file, downloadHandler);
+        assertEquals("\"v2\"", store.get(url).getEtag());
+        try (FileInputStream in = new FileInputStream(file)) {
+            assertArrayEquals("received bytes", source, IOUtils.readFully(in, -1, false));
+        }
+    }
+
+    @Test
+    public void syncResume() throws Exception {
+        File file = new File(DIR, "temp");
+        String url = "http://any.url";
+        acceptRanges = true;
+        ValidatorStore store = new ValidatorStore();
+        service.setValidatorStore(store);
+        etagMap.put(url, "\"v1\"");
+        service.download(url, file, downloadHandler);
+
+        //    truncated file of other version is loaded again instead of resume
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(1000);
+        }
+        source = generateRandomBytes(source.length);
+        etagMap.put(url, "\"v2\"");
+        service.download(url, file, downloadHandler);
+        try (FileInputStream in = new FileInputStream(file)) {
+            assertArrayEquals("received bytes", source, IOUtils.readFully(in, -1, false));
+        }
+    }
+
+    @Test
+    public void cache() throws Exception {
+        File cacheDir = new File("temp-cache");
+        try {
+            DownloadCache cache = new DownloadCache(cacheDir, 2 * source.length);
+            service.setCache(cache);
+            service.download("http://any.url/file", new File(DIR, "first"), downloadHandler);
+            assertEquals(1, cache.getMisses());
+            assertEquals(source.length, cache.getSize());
+
+            //    equal URL is filled without network
+            brokenURLs.add("HTTP://Any.URL:80/file");
+            File file = new File(DIR, "second");
+            received = 0;
+            service.download("HTTP://Any.URL:80/file", file, downloadHandler);
+            assertEquals(1, cache.getHits());
+            assertEquals(source.length, received);
+            try (FileInputStream in = new FileInputStream(file)) {
+                assertArrayEquals("cached bytes", source, IOUtils.readFully(in, -1, false));
+            }
+
+            //    the same content is stored once
+            service.download("http://other.url/file", new File(DIR, "third"), downloadHandler);
+            assertEquals(2, cache.getEntriesCount());
+            assertEquals(source.length, cache.getSize());
+
+            //    the least recently used content is evicted
+            service.download("http://any.url/file", new File(DIR, "fourth"), downloadHandler);
+            byte[] first = source;
+            for (int i = 0; i < 2; i++) {
+                source = generateRandomBytes(first.length);
+                service.download("http://new.url/" + i, new File(DIR, "new" + i), downloadHandler);
+            }
+            assertEquals(1, cache.getEvictions());
+            assertNull(cache.get("http://any.url/file"));
+            assertEquals(2 * source.length, cache.getSize());
+
+            //    index is kept between runs
+            cache.save();
+            cache = new DownloadCache(cacheDir, 2 * source.length);
+            assertEquals(2, cache.getEntriesCount());
+            assertNotNull(cache.fill("http://new.url/1", new File(DIR, "restored")));
+        } finally {
+            for (File file : cacheDir.listFiles()) {
+                file.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void cacheSync() throws Exception {
+        File cacheDir = new File("temp-cache");
+        try {
+            String url = "http://any.url/file";
+            DownloadCache cache = new DownloadCache(cacheDir, 2 * source.length);
+            ValidatorStore store = new ValidatorStore();
+            service.setCache(cache);
+            service.setValidatorStore(store);
+            etagMap.put(url, "\"v1\"");
+            service.download(url, new File(DIR, "first"), downloadHandler);
+
+            //    cached version is used if it isn't modified
+            byte[] cached = source;
+            source = generateRandomBytes(source.length);
+            brokenURLs.add(url);
+            File file = new File(DIR, "second");
+            service.download(url, file, downloadHandler);
+            assertEquals(1, cache.getHits());
+            assertEquals(file.getAbsoluteFile(), store.get(url).getFile());
+            assertArrayEquals("cached bytes", cached, Files.readAllBytes(file.toPath()));
+
+            //    modified version is loaded instead of the cached one
+            brokenURLs.clear();
+            etagMap.put(url, "\"v2\"");
+            file = new File(DIR, "third");
+            service.download(url, file, downloadHandler);
+            assertEquals(1, cache.getHits());
+            assertEquals("\"v2\"", store.get(url).getEtag());
+            assertEquals("\"v2\"", cache.get(url).getEtag());
+            assertArrayEquals("received bytes", source, Files.readAllBytes(file.toPath()));
+        } finally {
+            for (File file : cacheDir.listFiles()) {
+                file.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void cacheHardLinks() throws Exception {
+        File cacheDir = new File("temp-cache");
+        try {
+            DownloadCache cache = new DownloadCache(cacheDir, 2 * source.length);
+            cache.setHardLinks(true);
+            service.setCache(cache);
+            service.download("http://any.url/file", new File(DIR, "first"), downloadHandler);
+            File file = new File(DIR, "second");
+            service.download("http://any.url/file", file, downloadHandler);
+            assertTrue("file is linked", Files.isSameFile(file.toPath(), new File(cacheDir, cache.get("http://any.url/file").getHash()).toPath()));
+
+            //    download of other version into the linked file doesn't change cached content
+            byte[] cached = source;
+            source = generateRandomBytes(source.length);
+            service.download("http://other.url/file", file, 0, downloadHandler);
+            assertArrayEquals("received bytes", source, Files.readAllBytes(file.toPath()));
+            File third = new File(DIR, "third");
+            service.download("http://any.url/file", third, downloadHandler);
+            assertArrayEquals("cached bytes", cached, Files.readAllBytes(third.toPath()));
+        } finally {
+            for (File file : cacheDir.listFiles()) {
+                file.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void cacheRange() throws Exception {
+        File cacheDir = new File("temp-cache");
+        try {
+            service.setCache(new DownloadCache(cacheDir, source.length));
+            service.download("http://any.url/file", new File(DIR, "first"), downloadHandler);
+
+            //    the loaded part is kept
+            File file = new File(DIR, "second");
+            Files.write(file.toPath(), new byte[5000]);
+            service.download("http://any.url/file", file, 5000, downloadHandler);
+            byte[] expected = source.clone();
+            Arrays.fill(expected, 0, 5000, (byte) 0);
+            assertArrayEquals("received bytes", expected, Files.readAllBytes(file.toPath()));
+        } finally {
+            for (File file : cacheDir.listFiles()) {
+                file.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void preallocate() throws Exception {
+        File file = new File(DIR, "temp");
+
+        List<Long> lengths = new ArrayList<>();
+        service.setBlockSize(1000);
+        service.download("http://any.url", file, new DownloadService.Handler() {
+            @Override
+            public void onProgress(long received, long total) {
+                lengths.add(file.length());
+            }
+        });
+
+        //    the first report is before the file is opened
+        assertEquals(source.length, (long) lengths.get(1));
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void notEnoughSpace() throws Exception {
+        File file = new File(DIR, "temp");
+        Files.write(file.toPath(), Arrays.copyOf(source, 1000));
+
+        long length = Files.getFileStore(DIR.toPath()).getUsableSpace() * 2;
+        service.setEngine(request -> new HttpEngine.Response() {
+            @Override
+            public int getStatus() {
+                return HttpURLConnection.HTTP_PARTIAL;
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return name.equals("Content-Range") ? "bytes 1000-" + (length - 1) + "/" + length : null;
+            }
+
+            @Override
+            public long getContentLength() {
+                return length - 1000;
+            }
+
+            @Override
+            public InputStream getBody() {
+                fail("Content is read without space");
+                return null;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+        try {
+            service.download("http://any.url", file, downloadHandler);
+            fail("Space error is expected");
+        } catch (DownloadException e) {
+            //    loaded part is kept
+            assertEquals(1000, file.length());
+        }
+    }
+
     @Test
     public void redirect() throws Exception {
         File file = new File(DIR, "temp");
@@ -260,4 +777,209 @@ public class DownloadServiceTest {
             assertArrayEquals("received bytes", expected, result);
         }
     }
+
+    @Test
+    public void downloadSegmented() throws Exception {
+        File file = new File(DIR, "temp");
+
+        acceptRanges = true;
+        maxReadBlock = 1000;
+        service.setSegmentsCount(4);
+        service.setMinSegmentSize(1024);
+        service.download("http://any.url", file, downloadHandler);
+
+        assertEquals(4, accessedURLs.size());
+        try (FileInputStream in = new FileInputStream(file)) {
+            assertEquals("received bytes count", source.length, received);
+            assertEquals("received Content-Length", source.length, total);
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void downloadSegmentedWithSteal() throws Exception {
+        File file = new File(DIR, "temp");
+
+        source = generateRandomBytes(1000000);
+        acceptRanges = true;
+        maxReadBlock = 1000;
+        slowRange = source.length / 2;
+        service.setSegmentsCount(2);
+        service.setMinSegmentSize(10000);
+        service.setBlockSize(1000);
+        List<List<SegmentStats>> reports = new ArrayList<>();
+        service.download("http://any.url", file, new DownloadService.Handler() {
+            @Override
+            public void onProgress(long received, long total) {
+            }
+
+            @Override
+            public void onSegments(List<SegmentStats> segments) {
+                reports.add(segments);
+            }
+        });
+
+        assertArrayEquals("received bytes", source, Files.readAllBytes(file.toPath()));
+        assertTrue("parts of slow segment are stolen", accessedURLs.size() > 2);
+        List<SegmentStats> segments = reports.get(reports.size() - 1);
+        assertEquals(accessedURLs.size(), segments.size());
+        SegmentStats slow = segments.stream().filter(segment -> segment.getStart() == slowRange).findFirst().get();
+        assertTrue(slow.getSteals() > 0);
+        assertTrue(slow.getEnd() < source.length);
+        long covered = 0;
+        for (SegmentStats segment : segments) {
+            assertEquals("segments are continuous", covered, segment.getStart());
+            assertEquals("segment is loaded", segment.getEnd() - segment.getStart(), segment.getReceived());
+            covered = segment.getEnd();
+        }
+        assertEquals(source.length, covered);
+    }
+
+    @Test
+    public void downloadFromMirrors() throws Exception {
+        File file = new File(DIR, "temp");
+
+        source = generateRandomBytes(100000);
+        acceptRanges = true;
+        maxReadBlock = 1000;
+        service.setMinSegmentSize(1000);
+        service.setBlockSize(1000);
+        etagMap.put("http://first.url", "\"1\"");
+        etagMap.put("http://second.url", "\"1\"");
+        etagMap.put("http://other.url", "\"2\"");
+        brokenURLs.add("http://broken.url");
+        List<List<SegmentStats>> reports = new ArrayList<>();
+        service.download(Arrays.asList("http://first.url", "http://second.url", "http://other.url", "http://broken.url"), file,
+                new DownloadService.Handler() {
+                    @Override
+                    public void onProgress(long received, long total) {
+                    }
+
+                    @Override
+                    public void onSegments(List<SegmentStats> segments) {
+                        reports.add(segments);
+                    }
+                });
+
+        assertArrayEquals("received bytes", source, Files.readAllBytes(file.toPath()));
+        assertTrue(accessedURLs.contains("http://other.url"));
+        assertTrue(accessedURLs.contains("http://broken.url"));
+        //    data is taken only from mirrors with the same version
+        Set<String> loadedFrom = new HashSet<>();
+        for (SegmentStats segment : reports.get(reports.size() - 1)) {
+            loadedFrom.add(segment.getUrl());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("http://first.url", "http://second.url")), loadedFrom);
+    }
+
+    @Test
+    public void downloadFromMirrorsWithoutRanges() throws Exception {
+        File file = new File(DIR, "temp");
+
+        brokenURLs.add("http://broken.url");
+        service.download(Arrays.asList("http://broken.url", "http://first.url"), file, downloadHandler);
+
+        assertArrayEquals("received bytes", source, Files.readAllBytes(file.toPath()));
+        assertEquals(Arrays.asList("http://broken.url", "http://first.url"), accessedURLs);
+    }
+
+    @Test
+    public void resumeFromMirrorOfSameVersion() throws Exception {
+        File file = new File(DIR, "temp");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(source, 0, 5000);
+        }
+
+        acceptRanges = true;
+        service.setMinSegmentSize(source.length);
+        etagMap.put("http://first.url", "\"1\"");
+        etagMap.put("http://other.url", "\"2\"");
+        etagMap.put("http://second.url", "\"1\"");
+        brokenURLs.add("http://first.url");
+        service.download(Arrays.asList("http://first.url", "http://other.url", "http://second.url"), file, downloadHandler);
+
+        assertArrayEquals("received bytes", source, Files.readAllBytes(file.toPath()));
+        //    other version isn't appended to the loaded part
+        assertEquals(Arrays.asList("http://first.url", "http://other.url", "http://second.url"), accessedURLs);
+    }
+
+    @Test
+    public void downloadSegmentedWithoutRanges() throws Exception {
+        File file = new File(DIR, "temp");
+
+        service.setSegmentsCount(4);
+        service.setMinSegmentSize(1024);
+        service.download("http://any.url", file, downloadHandler);
+
+        assertEquals(Collections.singletonList("http://any.url"), accessedURLs);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void progressInterval() throws Exception {
+        File file = new File(DIR, "temp");
+
+        List<Long> progress = new ArrayList<>();
+        service.setBlockSize(1024);
+        service.setProgressInterval(4096);
+        service.download("http://any.url", file, (received, total) -> progress.add(received));
+
+        // initial, each 4096 bytes and final calls
+        assertEquals(Arrays.asList(0L, 4096L, 8192L, 12288L, 16384L, 16384L), progress);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
+
+    @Test
+    public void customEngine() throws Exception {
+        File file = new File(DIR, "temp");
+
+        service.setEngine(request -> {
+            accessedURLs.add(request.getUrl());
+            assertEquals(service.getUserAgent(), request.getHeaders().get("User-Agent"));
+            return new HttpEngine.Response() {
+                @Override
+                public int getStatus() {
+                    return HttpURLConnection.HTTP_OK;
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return null;
+                }
+
+                @Override
+                public long getContentLength() {
+                    return source.length;
+                }
+
+                @Override
+                public InputStream getBody() {
+                    return new ByteArrayInputStream(source);
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public void abort() {
+                }
+            };
+        });
+        service.download("http://any.url", file, downloadHandler);
+
+        assertEquals(Collections.singletonList("http://any.url"), accessedURLs);
+        try (FileInputStream in = new FileInputStream(file)) {
+            assertEquals("received bytes count", source.length, received);
+            byte[] result = IOUtils.readFully(in, -1, false);
+            assertArrayEquals("received bytes", source, result);
+        }
+    }
 }
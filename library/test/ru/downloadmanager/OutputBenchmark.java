@@ -0,0 +1,111 @@
+package ru.downloadmanager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+
+/**
+ * Manual benchmark of output modes on a large file, content is generated in memory, so only writing is measured.
+ * Arguments: file size in megabytes (2048 by default), directory of the file (current by default).
+ * It isn't run with tests.
+ */
+public class OutputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 2048) * 1024 * 1024;
+        File file = new File(args.length > 1 ? args[1] : ".", "output-benchmark.tmp");
+        try {
+            measure("stream", size, file, () -> {
+                try (InputStream in = Channels.newInputStream(new Source(size));
+                     OutputStream out = new FileOutputStream(file)) {
+                    byte[] buffer = new byte[8192];
+                    for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+                        out.write(buffer, 0, count);
+                    }
+                }
+            });
+
+            DownloadService service = new DownloadService();
+            measure("channel", size, file, () -> transfer(service, file, size));
+
+            WritePipeline pipeline = new WritePipeline();
+            service.setWritePipeline(pipeline);
+            measure("write-behind", size, file, () -> transfer(service, file, size));
+            service.setWritePipeline(null);
+            pipeline.shutdown();
+            System.out.println("  waits: " + pipeline.getWaits() + ", coalesced: " + pipeline.getWrites() + " -> " + pipeline.getWriteCalls());
+
+            service.setMappedWindow(64 * 1024 * 1024);
+            measure("mapped", size, file, () -> transfer(service, file, size));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void transfer(DownloadService service, File file, long size) throws Exception {
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            service.allocate(out, file, size);
+            service.transfer(new Source(size), out, 0, size, (position, blockSize) -> true);
+            out.force(false);
+        }
+    }
+
+    private static void measure(String mode, long size, File file, Task task) throws Exception {
+        file.delete();
+        long start = System.nanoTime();
+        task.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (file.length() != size) {
+            throw new IllegalStateException(mode + " wrote " + file.length() + " bytes");
+        }
+        System.out.printf("%-12s %8.2f s %8.1f MB/s%n", mode, seconds, size / seconds / 1024 / 1024);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    // channel of the given size which repeats random bytes
+    private static class Source implements ReadableByteChannel {
+        private static final byte[] PATTERN = new byte[1024 * 1024];
+
+        static {
+            new Random(1).nextBytes(PATTERN);
+        }
+
+        private long remaining;
+
+        Source(long size) {
+            remaining = size;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = (int) Math.min(Math.min(buffer.remaining(), remaining), PATTERN.length);
+            buffer.put(PATTERN, 0, count);
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ru.downloadmanager;
+
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    private static long measure(Runnable action) {
+        long start = System.nanoTime();
+        action.run();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void acquire(long bytes, RateLimiter... limiters) {
+        try {
+            RateLimiter.acquire(bytes, limiters);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void rate() {
+        RateLimiter limiter = new RateLimiter(1000000);
+
+        //    accumulated second of the rate is available at once
+        long burst = measure(() -> acquire(1000000, limiter));
+        assertTrue("burst time " + burst, burst < 100);
+
+        long time = measure(() -> acquire(200000, limiter));
+        assertTrue("limited time " + time, time >= 190);
+    }
+
+    @Test
+    public void slowestLimiter() {
+        RateLimiter fast = new RateLimiter(10000000);
+        RateLimiter slow = new RateLimiter(1000000);
+        acquire(10000000, fast);
+        acquire(1000000, slow);
+
+        long time = measure(() -> acquire(200000, fast, slow, null));
+        assertTrue("limited time " + time, time >= 190 && time < 1000);
+    }
+
+    @Test
+    public void unlimited() {
+        RateLimiter limiter = new RateLimiter(1000);
+        acquire(1000, limiter);
+        limiter.setRate(0);
+
+        long time = measure(() -> acquire(1000000, limiter));
+        assertTrue("unlimited time " + time, time < 100);
+    }
+}
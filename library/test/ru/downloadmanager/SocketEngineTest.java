@@ -0,0 +1,269 @@
+package ru.downloadmanager;
+
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SocketEngineTest {
+
+    private static final File DIR = new File("temp");
+
+    private byte[] source;
+    private ServerSocket serverSocket;
+    private AtomicInteger connectionsCount;
+    private String baseUrl;
+
+    private ConnectionPool pool;
+    private DownloadService service;
+
+    @Before
+    public void init() throws IOException {
+        DIR.mkdirs();
+
+        source = new byte[100000];
+        new Random().nextBytes(source);
+        connectionsCount = new AtomicInteger();
+        serverSocket = new ServerSocket(0);
+        baseUrl = "http://localhost:" + serverSocket.getLocalPort();
+        Thread serverThread = new Thread(this::serve);
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        pool = new ConnectionPool();
+        service = new DownloadService(new SocketEngine(pool));
+    }
+
+    @After
+    public void close() throws IOException {
+        serverSocket.close();
+        pool.close();
+    }
+
+    @AfterClass
+    public static void finz() {
+        if (DIR.exists()) {
+            for (File file : DIR.listFiles()) {
+                file.delete();
+            }
+            DIR.delete();
+        }
+    }
+
+    //    simple keep-alive server, each connection is processed in its own thread
+    private void serve() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                connectionsCount.incrementAndGet();
+                Thread thread = new Thread(() -> {
+                    try (Socket s = socket) {
+                        InputStream in = s.getInputStream();
+                        OutputStream out = s.getOutputStream();
+                        for (String line; (line = SocketEngine.readLine(in)) != null; ) {
+                            String path = line.split(" ")[1];
+                            while (!SocketEngine.readLine(in).isEmpty()) ;
+                            respond(path, out);
+                        }
+                    } catch (IOException e) {
+                        //    client closed connection
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            //    server is closed
+        }
+    }
+
+    private void respond(String path, OutputStream out) throws IOException {
+        if (path.equals("/fixed")) {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + source.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(source);
+        } else if (path.equals("/chunked")) {
+            out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            for (int offset = 0; offset < source.length; offset += 7000) {
+                int size = Math.min(7000, source.length - offset);
+                out.write((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.write(source, offset, size);
+                out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        } else if (path.equals("/frozen")) {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + source.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(source, 0, 1000);
+            out.flush();
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        } else if (path.equals("/redirect")) {
+            out.write(("HTTP/1.1 302 Found\r\nLocation: " + baseUrl + "/fixed\r\nContent-Length: 5\r\n\r\nmoved").getBytes(StandardCharsets.ISO_8859_1));
+        } else if (path.equals("/long/header")) {
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < 100000; i++) {
+                value.append('x');
+            }
+            out.write(("HTTP/1.1 200 OK\r\nX-Long: " + value + "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        } else if (path.equals("/many/headers")) {
+            StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n");
+            for (int i = 0; i < 1000; i++) {
+                head.append("X-Header-").append(i).append(": value\r\n");
+            }
+            out.write(head.append("Content-Length: 0\r\n\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+        } else if (path.equals("/relative/redirect")) {
+            out.write("HTTP/1.1 302 Found\r\nLocation: ../fixed\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        } else {
+            out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.flush();
+    }
+
+    private void download(String path) throws Exception {
+        File file = new File(DIR, "temp");
+        service.download(baseUrl + path, file, (received, total) -> {});
+        assertArrayEquals("received bytes", source, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void reuseConnection() throws Exception {
+        download("/fixed");
+        download("/fixed");
+        download("/chunked");
+
+        assertEquals("opened connections", 1, connectionsCount.get());
+        assertEquals("pool hits", 2, pool.getHits());
+        assertEquals("pool misses", 1, pool.getMisses());
+    }
+
+    @Test
+    public void redirectReusesConnection() throws Exception {
+        download("/redirect");
+
+        assertEquals("opened connections", 1, connectionsCount.get());
+        assertEquals("pool hits", 1, pool.getHits());
+    }
+
+    @Test
+    public void relativeRedirect() throws Exception {
+        download("/relative/redirect");
+
+        assertEquals("opened connections", 1, connectionsCount.get());
+    }
+
+    @Test
+    public void idleLimit() throws Exception {
+        pool.setMaxIdlePerHost(0);
+
+        download("/fixed");
+        download("/fixed");
+
+        assertEquals("opened connections", 2, connectionsCount.get());
+        assertEquals("pool misses", 2, pool.getMisses());
+        assertEquals("pool evictions", 2, pool.getEvictions());
+    }
+
+    @Test
+    public void idleSweep() throws Exception {
+        pool.setIdleTimeout(100);
+
+        download("/fixed");
+        assertEquals("idle connections", 1, pool.getIdleCount());
+
+        //    connection to the host which isn't requested anymore is closed anyway
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getIdleCount() > 0) {
+            assertTrue("idle connection isn't closed", System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+        assertEquals("pool evictions", 1, pool.getEvictions());
+    }
+
+    @Test
+    public void abortAfterClose() throws Exception {
+        SocketEngine engine = new SocketEngine(pool);
+        HttpEngine.Response response = engine.open(new HttpEngine.Request(baseUrl + "/fixed"));
+        while (response.getBody().read(new byte[8192]) != -1) ;
+        response.close();
+        //    released connection is kept
+        response.abort();
+
+        download("/fixed");
+        assertEquals("opened connections", 1, connectionsCount.get());
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        service.setReadTimeout(200);
+        long start = System.nanoTime();
+        try {
+            download("/frozen");
+            fail("Frozen download is completed");
+        } catch (SocketTimeoutException e) {
+            //    expected
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+    }
+
+    @Test
+    public void handshakeTimeout() throws Exception {
+        service.setReadTimeout(200);
+        //    server accepts but never answers TLS hello
+        try (ServerSocket silent = new ServerSocket(0)) {
+            long start = System.nanoTime();
+            try {
+                service.download("https://localhost:" + silent.getLocalPort() + "/fixed", new File(DIR, "temp"), (received, total) -> {});
+                fail("Silent server is handshaked");
+            } catch (IOException e) {
+                //    expected, JSSE wraps the timeout
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+        }
+    }
+
+    @Test
+    public void hostHeader() {
+        assertEquals("any.url", SocketEngine.hostHeader("any.url", -1));
+        assertEquals("any.url:8080", SocketEngine.hostHeader("any.url", 8080));
+        assertEquals("[::1]:8080", SocketEngine.hostHeader("::1", 8080));
+        assertEquals("[::1]", SocketEngine.hostHeader("::1", -1));
+    }
+
+    @Test
+    public void headLimits() throws Exception {
+        for (String path : new String[] {"/long/header", "/many/headers"}) {
+            try {
+                download(path);
+                fail("Response head isn't limited: " + path);
+            } catch (IOException e) {
+                //    expected
+            }
+        }
+    }
+
+    @Test(expected = DownloadException.class)
+    public void notFound() throws Exception {
+        download("/unknown");
+    }
+}